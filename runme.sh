@@ -1,12 +1,15 @@
 #!/bin/sh
 
 JAVABIN=`which java`
+JAVACBIN=`which javac`
 
-if [ ! -x "${JAVABIN}" ]; then
-	echo "You need J2RE to run this program!"
+if [ ! -x "${JAVABIN}" ] || [ ! -x "${JAVACBIN}" ]; then
+	echo "You need J2SDK to compile and run this program!"
 	echo "Aborting..."
 	exit 1
 fi
+cd `dirname "$0"`
+# the bytecode in class/ is rebuilt from src/, so it's never stale
+javac -encoding ISO-8859-1 -nowarn -d class src/*.java || exit 1
 cd class
-java Run
-
+java Run "$@"
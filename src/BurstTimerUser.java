@@ -0,0 +1,44 @@
+/**
+ *  This interface is implemented by the components that, besides
+ *  being ticked one tick at a time, can perform the work of several
+ *  ticks in a row when the timer hands them a wider tick window.
+ *  A component must end the window early, right after the tick in
+ *  which it has raised an interrupt, so that the interrupt is handled
+ *  at the same tick as in a tick-by-tick execution.
+ *  ----------------------------------------------------------------
+ *  @author Ciro Mattia Gonano <CODE>&lt;gonano@CS.UniBO.It&gt;</CODE>
+ *  @author Jacopo Saporetti <CODE>&lt;saporet3@CS.UniBO.It&gt;</CODE>
+ *  @author Mauro Seno <CODE>&lt;mseno@CS.UniBO.It&gt;</CODE>
+ *  ________________________________________________________________
+ */
+
+public interface BurstTimerUser extends TimerUser
+{
+	/**
+	 * Performs, on the calling thread, the work of up to
+	 * <CODE>ticks</CODE> ticks.
+	 *
+	 * @param ticks the width of the tick window
+	 * @return the number of ticks actually performed, less than
+	 * <CODE>ticks</CODE> if an interrupt has been raised
+	 */
+	public int runTicks ( int ticks );
+
+	/**
+	 * Tells whether the component has no pending work that could
+	 * raise an interrupt.
+	 *
+	 * @return true if the component is idle
+	 */
+	public boolean isIdle();
+
+	/**
+	 * Accounts for <CODE>ticks</CODE> ticks in which the component
+	 * had nothing to do, without performing any work: it's used when
+	 * work has been posted to an idle component at the last tick of
+	 * a window, after the idle ones.
+	 *
+	 * @param ticks the number of idle ticks
+	 */
+	public void idleTicks ( int ticks );
+}
@@ -0,0 +1,25 @@
+/**
+ *  This interface is implemented by the scheduling policies of a DMA
+ *  channel: before each transfer the policy picks which of the pending
+ *  requests of a queue is served, and the channel moves it to the head.
+ *  A policy may keep a state (e.g. the position of an elevator), so
+ *  every queue has its own instance.
+ *  ----------------------------------------------------------------
+ *  @author Ciro Mattia Gonano <CODE>&lt;gonano@CS.UniBO.It&gt;</CODE>
+ *  @author Jacopo Saporetti <CODE>&lt;saporet3@CS.UniBO.It&gt;</CODE>
+ *  @author Mauro Seno <CODE>&lt;mseno@CS.UniBO.It&gt;</CODE>
+ *  ________________________________________________________________
+ */
+
+public interface DMAPolicy
+{
+	/**
+	 * Chooses the next request to serve.
+	 *
+	 * @param q the queue, holding at least a request
+	 * @param now the current tick, truncated to an int like the arrival
+	 * ticks of the requests
+	 * @return the position in <CODE>q</CODE> of the chosen request
+	 */
+	public int select ( MarsDMAQueue q, int now );
+}
@@ -0,0 +1,363 @@
+/**
+ *  This class is a cache of file blocks between the DMA and the
+ *  storage. A block is <CODE>BLOCK</CODE> consecutive cells of a file,
+ *  and the cache holds a fixed number of them, packed in a single array
+ *  of ints; a hash table with linear probing finds the block of a file
+ *  position, and the CLOCK algorithm chooses the block to evict.
+ *  Writes only touch the cached block, which is marked dirty and
+ *  written back to the storage when it's evicted or at a flush. A write
+ *  may go past the end of the file, which grows at once.
+ *  All the transfers of the DMA must go through the cache, or the
+ *  files would get out of date.
+ *  ----------------------------------------------------------------
+ *  @author Ciro Mattia Gonano <CODE>&lt;gonano@CS.UniBO.It&gt;</CODE>
+ *  @author Jacopo Saporetti <CODE>&lt;saporet3@CS.UniBO.It&gt;</CODE>
+ *  @author Mauro Seno <CODE>&lt;mseno@CS.UniBO.It&gt;</CODE>
+ *  ________________________________________________________________
+ */
+
+import java.util.Arrays;
+
+public class MarsBlockCache
+{
+	/** Number of cells of a block */
+	public static final int BLOCK = 16;
+
+	private static final int FREE = -1;
+
+	private MarsStorage storage;
+	private int nblocks;
+	private int[] data;		/* the cells of every block, three ints each */
+	private int[] files;		/* file ID of every block, or FREE */
+	private int[] blocks;		/* block number in the file of every block */
+	private int[] lengths;		/* cells of every block, less than BLOCK at the end of a file */
+	private boolean[] dirty;
+	private boolean[] referenced;	/* used since the hand of the clock passed by? */
+	private int hand;
+	private int[] index;		/* hash table of the blocks: slot+1, or 0 if empty */
+	private int imask;
+	private long hits;
+	private long misses;
+	private long writebacks;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param storage the storage the blocks are read from and written to
+	 * @param nblocks the number of blocks held
+	 * @throws IllegalArgumentException if there isn't at least a block
+	 */
+	public MarsBlockCache ( MarsStorage storage, int nblocks )
+	{
+		if (nblocks < 1)
+			throw new IllegalArgumentException("a cache needs at least a block");
+		this.storage = storage;
+		this.nblocks = nblocks;
+		data = new int[3*BLOCK*nblocks];
+		files = new int[nblocks];
+		blocks = new int[nblocks];
+		lengths = new int[nblocks];
+		dirty = new boolean[nblocks];
+		referenced = new boolean[nblocks];
+		for (int i=0; i<nblocks; i++)
+			files[i] = FREE;
+		int slots = 1;
+		while (slots < 2*nblocks)
+			slots <<= 1;
+		index = new int[slots];
+		imask = slots-1;
+		hand = 0;
+	}
+
+	/**
+	 * Copies <CODE>size</CODE> cells from the file specified by
+	 * <CODE>fileID</CODE>, starting from the position specified by
+	 * <CODE>offset</CODE>, into the memory from <CODE>address</CODE> on,
+	 * loading the blocks that aren't cached.
+	 *
+	 * @param pid the process id.
+	 * @param fileID the file id where to read cells.
+	 * @param offset where to begin to read cells.
+	 * @param size number of cell to be read.
+	 * @param memory where to copy the cells.
+	 * @param address the address of the first cell in memory.
+	 * @throws SecurityException if the process doesn't own the file or
+	 * the cells are out of the file
+	 */
+	public synchronized void readToMemory ( int pid, int fileID, int offset, int size, PrimitiveMemory memory, int address )
+	{
+		MarsFile file = storage.getOwnedFile(pid,fileID,"read");
+		if ( (offset<0) || (size<0) || (offset>=file.getMarsFileSize()) || (size>file.getMarsFileSize()-offset) )
+			throw new SecurityException("read: out of file limits.");
+		for (int pos=offset; pos<offset+size; ) {
+			int b = pos/BLOCK;
+			int from = pos-b*BLOCK;
+			int n = Math.min(BLOCK-from,offset+size-pos);
+			int s = fetch(file,fileID,b,true);
+			memory.writeCells(address+pos-offset,data,3*(BLOCK*s+from),n);
+			pos += n;
+		}
+	}
+
+	/**
+	 * Copies <CODE>size</CODE> cells from the file specified by
+	 * <CODE>fileID</CODE>, starting from the position specified by
+	 * <CODE>offset</CODE>, into <CODE>dst</CODE> from <CODE>pos</CODE>
+	 * on, three ints per cell.
+	 *
+	 * @param pid the process id.
+	 * @param fileID the file id where to read cells.
+	 * @param offset where to begin to read cells.
+	 * @param size number of cell to be read.
+	 * @param dst where to copy the cells.
+	 * @param pos the index in dst of the first cell.
+	 * @throws SecurityException if the process doesn't own the file or
+	 * the cells are out of the file
+	 */
+	public synchronized void read ( int pid, int fileID, int offset, int size, int[] dst, int pos )
+	{
+		MarsFile file = storage.getOwnedFile(pid,fileID,"read");
+		if ( (offset<0) || (size<0) || (offset>=file.getMarsFileSize()) || (size>file.getMarsFileSize()-offset) )
+			throw new SecurityException("read: out of file limits.");
+		for (int at=offset; at<offset+size; ) {
+			int b = at/BLOCK;
+			int from = at-b*BLOCK;
+			int n = Math.min(BLOCK-from,offset+size-at);
+			int s = fetch(file,fileID,b,true);
+			System.arraycopy(data,3*(BLOCK*s+from),dst,pos+3*(at-offset),3*n);
+			at += n;
+		}
+	}
+
+	/**
+	 * Copies <CODE>size</CODE> cells from <CODE>src</CODE>, starting
+	 * from <CODE>pos</CODE>, three ints per cell, into the cached blocks
+	 * of the file identified by <CODE>fileID</CODE> from
+	 * <CODE>offset</CODE> on.
+	 *
+	 * @param pid the process id.
+	 * @param fileID the file id where to write cells.
+	 * @param offset where to begin to write cells.
+	 * @param size number of cell to be written.
+	 * @param src where to copy the cells from.
+	 * @param pos the index in src of the first cell.
+	 * @throws SecurityException if the process doesn't own the file or
+	 * the cells are out of the file
+	 */
+	public synchronized void write ( int pid, int fileID, int offset, int size, int[] src, int pos )
+	{
+		MarsFile file = storage.getOwnedFile(pid,fileID,"write");
+		extend(file,fileID,offset,size);
+		for (int at=offset; at<offset+size; ) {
+			int b = at/BLOCK;
+			int from = at-b*BLOCK;
+			int n = Math.min(BLOCK-from,offset+size-at);
+			boolean whole = ( from==0 && n==lengthOf(file,b) );
+			int s = fetch(file,fileID,b,!whole);
+			System.arraycopy(src,pos+3*(at-offset),data,3*(BLOCK*s+from),3*n);
+			dirty[s] = true;
+			at += n;
+		}
+	}
+
+	/**
+	 * Copies <CODE>size</CODE> cells of the memory, from
+	 * <CODE>address</CODE> on, into the cached blocks of the file
+	 * identified by <CODE>fileID</CODE>, starting from the position
+	 * specified by <CODE>offset</CODE>. The file itself is written when
+	 * the blocks are written back.
+	 *
+	 * @param pid the process id.
+	 * @param fileID the file id where to write cells.
+	 * @param offset where to begin to write cells.
+	 * @param size number of cell to be written.
+	 * @param memory where to copy the cells from.
+	 * @param address the address of the first cell in memory.
+	 * @throws SecurityException if the process doesn't own the file or
+	 * the cells are out of the file
+	 */
+	public synchronized void writeFromMemory ( int pid, int fileID, int offset, int size, PrimitiveMemory memory, int address )
+	{
+		MarsFile file = storage.getOwnedFile(pid,fileID,"write");
+		extend(file,fileID,offset,size);
+		for (int pos=offset; pos<offset+size; ) {
+			int b = pos/BLOCK;
+			int from = pos-b*BLOCK;
+			int n = Math.min(BLOCK-from,offset+size-pos);
+			/* a block written as a whole needn't be read first */
+			boolean whole = ( from==0 && n==lengthOf(file,b) );
+			int s = fetch(file,fileID,b,!whole);
+			memory.readCells(address+pos-offset,data,3*(BLOCK*s+from),n);
+			dirty[s] = true;
+			pos += n;
+		}
+	}
+
+	/**
+	 * Writes back all the dirty blocks; they stay cached.
+	 */
+	public synchronized void flush()
+	{
+		for (int s=0; s<nblocks; s++)
+			writeBack(s);
+	}
+
+	/**
+	 * Drops the blocks of the file <CODE>fileID</CODE>, dirty ones
+	 * included, without writing them back: the file is being removed,
+	 * and its ID may be given to another one.
+	 *
+	 * @param fileID the file id
+	 */
+	public synchronized void drop ( int fileID )
+	{
+		for (int s=0; s<nblocks; s++)
+			if (files[s] == fileID) {
+				unindex(s);
+				files[s] = FREE;
+				dirty[s] = false;
+				referenced[s] = false;
+			}
+	}
+
+	/**
+	 * Returns the number of block lookups that found the block cached.
+	 */
+	public synchronized long getHits()
+	{
+		return hits;
+	}
+
+	/**
+	 * Returns the number of block lookups that had to load the block.
+	 */
+	public synchronized long getMisses()
+	{
+		return misses;
+	}
+
+	/**
+	 * Prints the hits, the misses and the write-backs.
+	 */
+	public synchronized void print()
+	{
+		System.out.println("Block cache: "+hits+" hits, "+misses+" misses, "+writebacks+" write-backs");
+	}
+
+	/* returns the slot of block b of the file, caching it if needed;
+	 * the cells are read from the file only if load is true */
+	private int fetch ( MarsFile file, int fileID, int b, boolean load )
+	{
+		int s = lookup(fileID,b);
+		if (s != FREE) {
+			hits++;
+			referenced[s] = true;
+			return s;
+		}
+		misses++;
+		s = victim();
+		if (files[s] != FREE) {
+			writeBack(s);
+			unindex(s);
+		}
+		files[s] = fileID;
+		blocks[s] = b;
+		lengths[s] = lengthOf(file,b);
+		dirty[s] = false;
+		referenced[s] = true;
+		if (load)
+			file.readCells(BLOCK*b,lengths[s],data,3*BLOCK*s);
+		index(s);
+		return s;
+	}
+
+	/* the slot chosen by the clock: a free one, or the first one not
+	 * referenced since the last turn */
+	private int victim()
+	{
+		while (true) {
+			int s = hand;
+			hand = ( hand+1 == nblocks ? 0 : hand+1 );
+			if (files[s] == FREE || !referenced[s])
+				return s;
+			referenced[s] = false;
+		}
+	}
+
+	private void writeBack ( int s )
+	{
+		if (files[s] == FREE || !dirty[s])
+			return;
+		storage.getMarsStorageFile(files[s]).writeCells(BLOCK*blocks[s],lengths[s],data,3*BLOCK*s);
+		dirty[s] = false;
+		writebacks++;
+	}
+
+	/* grows the file for a write of size cells from offset on, and
+	 * with it the cached block that was its last one */
+	private void extend ( MarsFile file, int fileID, int offset, int size )
+	{
+		int old = file.getMarsFileSize();
+		if ( (offset<0) || (size<0) || (offset>old) )
+			throw new SecurityException("write: out of file size.");
+		if (offset+size <= old)
+			return;
+		file.extendMarsFile(offset+size);
+		int s = lookup(fileID,old/BLOCK);
+		if (s != FREE) {
+			int len = lengthOf(file,blocks[s]);
+			Arrays.fill(data,3*(BLOCK*s+lengths[s]),3*(BLOCK*s+len),0);
+			lengths[s] = len;
+		}
+	}
+
+	private static int lengthOf ( MarsFile file, int b )
+	{
+		return Math.min(BLOCK,file.getMarsFileSize()-BLOCK*b);
+	}
+
+	private int hash ( int fileID, int b )
+	{
+		int h = fileID*0x9E3779B9+b;
+		return (h ^ (h>>>16)) & imask;
+	}
+
+	/* the slot of block b of the file, or FREE */
+	private int lookup ( int fileID, int b )
+	{
+		for (int h=hash(fileID,b); index[h]!=0; h=(h+1) & imask) {
+			int s = index[h]-1;
+			if (files[s] == fileID && blocks[s] == b)
+				return s;
+		}
+		return FREE;
+	}
+
+	private void index ( int s )
+	{
+		int h = hash(files[s],blocks[s]);
+		while (index[h] != 0)
+			h = (h+1) & imask;
+		index[h] = s+1;
+	}
+
+	/* removes slot s from the hash table, moving back the entries that
+	 * follow it in the probe sequence so that none gets unreachable */
+	private void unindex ( int s )
+	{
+		int h = hash(files[s],blocks[s]);
+		while (index[h] != s+1)
+			h = (h+1) & imask;
+		index[h] = 0;
+		for (int j=(h+1) & imask; index[j]!=0; j=(j+1) & imask) {
+			int t = index[j]-1;
+			int home = hash(files[t],blocks[t]);
+			/* t stays if its home is cyclically in (h, j] */
+			if ( ((j-home) & imask) < ((j-h) & imask) )
+				continue;
+			index[h] = index[j];
+			index[j] = 0;
+			h = j;
+		}
+	}
+}
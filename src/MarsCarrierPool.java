@@ -0,0 +1,93 @@
+/**
+ *  This class is a pool of carrier threads shared by many battles.
+ *  Instead of pinning a thread for the timer, one for the processor
+ *  and one for the DMA, a pooled battle is a task that runs a slice of
+ *  tick windows on a carrier and then queues itself again, so that a
+ *  few carriers can take turns on any number of battles.
+ *  The carriers are daemon threads: the JVM doesn't wait for them.
+ *  ----------------------------------------------------------------
+ *  @author Ciro Mattia Gonano <CODE>&lt;gonano@CS.UniBO.It&gt;</CODE>
+ *  @author Jacopo Saporetti <CODE>&lt;saporet3@CS.UniBO.It&gt;</CODE>
+ *  @author Mauro Seno <CODE>&lt;mseno@CS.UniBO.It&gt;</CODE>
+ *  ________________________________________________________________
+ */
+
+import java.util.LinkedList;
+
+public class MarsCarrierPool
+{
+	private LinkedList<Runnable> tasks;
+	private Thread[] carriers;
+	private boolean dead;
+
+	/**
+	 * Constructor: starts the carriers.
+	 *
+	 * @param size the number of carrier threads
+	 */
+	public MarsCarrierPool ( int size )
+	{
+		if (size < 1)
+			throw new IllegalArgumentException("a pool needs at least a carrier");
+		tasks = new LinkedList<Runnable>();
+		carriers = new Thread[size];
+		for (int i=0; i<size; i++) {
+			carriers[i] = new Thread("carrier-"+i) {
+				public void run()
+				{
+					carry();
+				}
+			};
+			carriers[i].setDaemon(true);
+			carriers[i].start();
+		}
+	}
+
+	/**
+	 * Queues a task, to be run by the first free carrier.
+	 *
+	 * @param task the task to run
+	 * @throws IllegalStateException if the pool has been shut down
+	 */
+	public synchronized void submit ( Runnable task )
+	{
+		if (dead)
+			throw new IllegalStateException("carrier pool shut down");
+		tasks.addLast(task);
+		this.notify();
+	}
+
+	/**
+	 * Stops the carriers once they have completed the current task;
+	 * the queued tasks are dropped.
+	 */
+	public synchronized void shutdown()
+	{
+		dead = true;
+		tasks.clear();
+		this.notifyAll();
+	}
+
+	/* returns the next task, or null if the pool has been shut down */
+	private synchronized Runnable take()
+	{
+		while (!dead && tasks.isEmpty())
+			try { this.wait();
+			} catch (InterruptedException e) {}
+		if (dead)
+			return null;
+		return tasks.removeFirst();
+	}
+
+	/* main loop of a carrier */
+	private void carry()
+	{
+		Runnable task;
+		while ((task = take()) != null)
+			try { task.run();
+			} catch (RuntimeException e) {
+				/* a broken battle mustn't take the carrier with it */
+				System.out.println("Task aborted: "+e);
+			}
+	}
+}
@@ -0,0 +1,136 @@
+/**
+ *  This class saves and restores the whole state of a simulation in a
+ *  memory-mapped file: the core memory, the processor's PC and
+ *  registers, the remaining ticks of the timer, the scheduler's thread
+ *  tables and ready queues, and the DMA's pending requests.
+ *  The memory is moved with a single bulk copy, so a restored battle
+ *  doesn't pay one <CODE>writeCell()</CODE> per cell.
+ *  A checkpoint can only be taken or restored while the processor,
+ *  the DMA and the timer are not running (e.g. right after bootstrap).
+ *  ----------------------------------------------------------------
+ *  @author Ciro Mattia Gonano <CODE>&lt;gonano@CS.UniBO.It&gt;</CODE>
+ *  @author Jacopo Saporetti <CODE>&lt;saporet3@CS.UniBO.It&gt;</CODE>
+ *  @author Mauro Seno <CODE>&lt;mseno@CS.UniBO.It&gt;</CODE>
+ *  ________________________________________________________________
+ */
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class MarsCheckpoint
+{
+	/** "MARS" */
+	private static final int MAGIC = 0x4D415253;
+	private static final int VERSION = 4;
+
+	/* magic, version, core size, PC, remaining ticks */
+	private static final int HEADER = 5;
+
+	/**
+	 * Saves the state of the simulation in the file <CODE>filename</CODE>.
+	 *
+	 * @param filename the checkpoint file, created or truncated
+	 * @throws IOException if the file can't be written
+	 */
+	public static void save ( String filename, PrimitiveMemory memory, MarsProcessor processor,
+			MarsScheduler scheduler, MarsDMA dma, MarsTimer timer ) throws IOException
+	{
+		int coresize = memory.getCoreSize();
+		int size = HEADER + MarsProcessor.NREGISTERS + 3*coresize +
+			scheduler.getStateSize() + dma.getStateSize();
+		RandomAccessFile file = new RandomAccessFile(filename,"rw");
+		try {
+			file.setLength(4L*size);
+			MappedByteBuffer map = file.getChannel().map(FileChannel.MapMode.READ_WRITE,0,4L*size);
+			IntBuffer dst = map.asIntBuffer();
+			dst.put(MAGIC);
+			dst.put(VERSION);
+			dst.put(coresize);
+			dst.put(processor.getPC());
+			dst.put(timer.getRemainingTicks());
+			for (int i=0; i<MarsProcessor.NREGISTERS; i++)
+				dst.put(processor.getRegister(i));
+			memory.saveCells(dst);
+			scheduler.saveState(dst);
+			dma.saveState(dst);
+			map.force();
+		}
+		finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Restores the state of the simulation from the file <CODE>filename</CODE>.
+	 *
+	 * @param filename a file written by <CODE>save()</CODE>
+	 * @return the number of ticks left before the timeout, to be given
+	 * to <CODE>timer.setTimeout()</CODE>
+	 * @throws IOException if the file can't be read, isn't a checkpoint,
+	 * is truncated or was saved with a different core size or number of
+	 * DMA channels
+	 */
+	public static int restore ( String filename, PrimitiveMemory memory, MarsProcessor processor,
+			MarsScheduler scheduler, MarsDMA dma ) throws IOException
+	{
+		RandomAccessFile file = new RandomAccessFile(filename,"r");
+		try {
+			FileChannel channel = file.getChannel();
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY,0,channel.size());
+			IntBuffer src = map.asIntBuffer();
+			if (src.remaining()<HEADER || src.get()!=MAGIC || src.get()!=VERSION)
+				throw new IOException(filename+" is not a MARS checkpoint");
+			if (src.get()!=memory.getCoreSize())
+				throw new IOException(filename+" was saved with a different core size");
+			/* the same size save() gives it, the DMA's from its queues */
+			int fixed = HEADER + MarsProcessor.NREGISTERS + 3*memory.getCoreSize() +
+				scheduler.getStateSize();
+			long dmasize = dmaStateSize(src,fixed);
+			if (channel.size()%4!=0 || dmasize<0 || channel.size()!=4*(fixed+dmasize))
+				throw new IOException(filename+" is truncated or corrupted");
+			processor.setPC(src.get());
+			int ticks = src.get();
+			for (int i=0; i<MarsProcessor.NREGISTERS; i++)
+				processor.setRegister(i,src.get());
+			memory.loadCells(src);
+			scheduler.loadState(src);
+			try { dma.loadState(src);
+			} catch (IllegalStateException e) {
+				throw new IOException(filename+": "+e.getMessage());
+			}
+			return ticks;
+		}
+		finally {
+			file.close();
+		}
+	}
+
+	/* the size of the DMA state saved from src[at] on, walking its
+	 * queues, or -1 if the file ends before it */
+	private static long dmaStateSize ( IntBuffer src, int at )
+	{
+		int end = src.limit();
+		if (at < 0 || at >= end)
+			return -1;
+		long pos = at;
+		int channels = src.get(at);
+		pos++;
+		for (int i=0; i<channels; i++) {
+			pos++;				/* write turn */
+			for (int q=0; q<2; q++) {
+				if (pos >= end)
+					return -1;
+				int n = src.get((int)pos);
+				if (n < 0)
+					return -1;
+				pos += 1+(long)MarsDMAQueue.STRIDE*n;
+			}
+			if (pos > end)
+				return -1;
+		}
+		return pos-at;
+	}
+}
@@ -0,0 +1,63 @@
+/**
+ *  This class wraps the addresses of the circular core memory.
+ *  When the core size is a power of two, an address is wrapped with a
+ *  mask; otherwise a modulus is used. In both cases negative addresses
+ *  (e.g. PC plus a negative offset) are wrapped to a position in
+ *  <CODE>[0, CoreSize)</CODE>.
+ *  ----------------------------------------------------------------
+ *  @author Ciro Mattia Gonano <CODE>&lt;gonano@CS.UniBO.It&gt;</CODE>
+ *  @author Jacopo Saporetti <CODE>&lt;saporet3@CS.UniBO.It&gt;</CODE>
+ *  @author Mauro Seno <CODE>&lt;mseno@CS.UniBO.It&gt;</CODE>
+ *  ________________________________________________________________
+ */
+
+public final class MarsCoreGeometry
+{
+	private final int CoreSize;
+	private final int mask;		/* CoreSize-1 if CoreSize is a power of two, -1 elsewhere */
+
+	/**
+	 * Constructor.
+	 *
+	 * @param coresize the number of cells of the core
+	 */
+	public MarsCoreGeometry ( int coresize )
+	{
+		if (coresize <= 0)
+			throw new IllegalArgumentException("CoreSize must be positive");
+		CoreSize = coresize;
+		mask = ( (coresize & (coresize-1)) == 0 ? coresize-1 : -1 );
+	}
+
+	/**
+	 * Returns the number of cells of the core.
+	 */
+	public int getCoreSize()
+	{
+		return CoreSize;
+	}
+
+	/**
+	 * Tells whether addresses are wrapped with a mask.
+	 *
+	 * @return true if the core size is a power of two
+	 */
+	public boolean isPowerOfTwo()
+	{
+		return mask >= 0;
+	}
+
+	/**
+	 * Wraps an address into the core.
+	 *
+	 * @param index any address, even negative
+	 * @return the position of the address in the core
+	 */
+	public int wrap ( int index )
+	{
+		if (mask >= 0)
+			return index & mask;
+		int i = index % CoreSize;
+		return ( i < 0 ? i+CoreSize : i );
+	}
+}
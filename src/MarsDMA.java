@@ -1,5 +1,15 @@
 /**
  * This is the implementation of the DMA interface.
+ * The transfers are performed by one or more channels
+ * (<CODE>MarsDMAChannel</CODE>); each request goes to the channel of
+ * its process or of its file, and every channel moves a chunk per tick.
+ * The channels may share a block cache (<CODE>MarsBlockCache</CODE>),
+ * whose dirty blocks are written back when the DMA dies.
+ * The writes may be journaled (<CODE>MarsJournal</CODE>): the DMA
+ * syncs the journal when no more writes are pending, or when enough
+ * records are waiting, so that a single force covers many writes.
+ * The slots left free by the requests are used to fill the read-ahead
+ * windows (<CODE>MarsReadAhead</CODE>) of the open file descriptors.
  * ------------------------------------------------
  *  @author Ciro Mattia Gonano <CODE>&lt;gonano@CS.UniBO.It&gt;</CODE>
  *  @author Jacopo Saporetti <CODE>&lt;saporet3@CS.UniBO.It&gt;</CODE>
@@ -7,28 +17,67 @@
  *  
  */
 
-import java.util.*;
+import java.nio.IntBuffer;
 
-public class MarsDMA extends Thread implements DMA, TimerUser
+public class MarsDMA extends Thread implements DMA, BurstTimerUser
 {
 	private MarsScheduler sched;
 	private MarsStorage storage;
-	private MarsMemory memory;
+	private PrimitiveMemory memory;
 	private MarsProcessor processor;
-	private MarsInterruptHandler handler;
+	private InterruptHandler handler;
 	private MarsTimer timer;
 	private int myID;
 	private boolean ticked;
-	private List readq;
-	private List writeq;
-	private boolean write_turn;
+	private MarsDMAChannel[] channels;
+	private int affinity;
+	private int first;			/* channel served first in the next tick */
 	private boolean dead;
-	private int maxrw;
+	private MarsDMAStats stats;
+	private MarsBlockCache cache;
+	private MarsJournal journal;
+	private int burst;
+	private int readahead;			/* largest read-ahead window, 0 if none */
+	private MarsReadAhead[] aheads;		/* the read-aheads of the open descriptors */
+	private int naheads;
+	private int nextahead;			/* read-ahead filled first in the next slot */
+	private Object aheadlock;
 
-	public MarsDMA ( MarsProcessor proc, MarsMemory mem, MarsStorage stor, MarsTimer tim, MarsScheduler scheduler )
+	/** Requests are routed to a channel by process id */
+	public static final int AFFINITY_PROCESS = 0;
+	/** Requests are routed to a channel by file id */
+	public static final int AFFINITY_FILE = 1;
+
+	/**
+	 * Constructor of a DMA with a single channel, moving at most
+	 * MaxReadWrite cells per tick.
+	 */
+	public MarsDMA ( MarsProcessor proc, PrimitiveMemory mem, MarsStorage stor, MarsTimer tim, MarsScheduler scheduler )
+	{
+		this(proc,mem,stor,tim,scheduler,1,AFFINITY_PROCESS,new MarsSystemConstant().getMaxReadWrite());
+	}
+
+	/**
+	 * Constructor of a DMA with <CODE>nchannels</CODE> channels.
+	 *
+	 * @param nchannels the number of channels
+	 * @param affinity AFFINITY_PROCESS or AFFINITY_FILE
+	 * @param burst the maximum number of cells a channel moves per tick,
+	 * coalescing contiguous requests; it's cut down to the core size, as
+	 * a longer transfer would wrap over the cells it has just moved
+	 * @throws IllegalArgumentException if there isn't at least a channel,
+	 * the affinity is unknown or the burst isn't positive
+	 */
+	public MarsDMA ( MarsProcessor proc, PrimitiveMemory mem, MarsStorage stor, MarsTimer tim, MarsScheduler scheduler,
+			int nchannels, int affinity, int burst )
 	{
+		if (nchannels < 1)
+			throw new IllegalArgumentException("the DMA needs at least a channel");
+		if (burst < 1)
+			throw new IllegalArgumentException("the DMA burst must be positive");
+		if (affinity != AFFINITY_PROCESS && affinity != AFFINITY_FILE)
+			throw new IllegalArgumentException("Unknown DMA affinity: "+affinity);
 		MarsSystemConstant cons = new MarsSystemConstant();
-		maxrw=cons.getMaxReadWrite();
 		processor=proc;
 		memory=mem;
 		storage=stor;
@@ -37,8 +86,189 @@ public class MarsDMA extends Thread implements DMA, TimerUser
 		myID=timer.addTimerUser((TimerUser)this);
 		System.out.println("DMA: assigned timerID: " +myID);
 		sched=scheduler;
-		readq=Collections.synchronizedList(new LinkedList());
-		writeq=Collections.synchronizedList(new LinkedList());
+		/* each thread has at most a pending request, as it's held
+		 * until the request completes */
+		int pending = cons.getProcessNum()*cons.getMaximumNumberOfTask();
+		this.affinity=affinity;
+		this.burst=Math.min(burst,mem.getCoreSize());
+		aheads=new MarsReadAhead[cons.getProcessNum()*cons.getMaximumNumberOfFile()];
+		aheadlock=new Object();
+		stats=new MarsDMAStats();
+		channels=new MarsDMAChannel[nchannels];
+		for (int i=0; i<nchannels; i++)
+			channels[i]=new MarsDMAChannel(stor,mem,pending,this.burst,stats);
+		first=0;
+	}
+
+	/**
+	 * Returns the number of channels.
+	 */
+	public int getChannels()
+	{
+		return channels.length;
+	}
+
+	/**
+	 * Sets the scheduling policy of all the channels. It must be called
+	 * before the DMA is ticked.
+	 *
+	 * @param name "fifo" to serve the requests in order of arrival,
+	 * "priority" to serve first the threads with the highest priority,
+	 * "deadline" to serve first the earliest deadline, "elevator" to
+	 * sweep the files by offset
+	 * @throws IllegalArgumentException if the policy is unknown
+	 */
+	public void setPolicy ( String name )
+	{
+		for (int i=0; i<channels.length; i++)
+			channels[i].setPolicies(createPolicy(name),createPolicy(name));
+	}
+
+	/* every queue needs its own instance, as a policy may have a state */
+	private DMAPolicy createPolicy ( String name )
+	{
+		if (name.equals("fifo"))
+			return new MarsDMAFifoPolicy();
+		else if (name.equals("priority"))
+			return new MarsDMAPriorityPolicy(sched);
+		else if (name.equals("deadline"))
+			return new MarsDMADeadlinePolicy(sched);
+		else if (name.equals("elevator"))
+			return new MarsDMAElevatorPolicy();
+		else
+			throw new IllegalArgumentException("Unknown DMA policy: "+name);
+	}
+
+	/**
+	 * Returns the statistics of the waits of the completed requests.
+	 */
+	public MarsDMAStats getStats()
+	{
+		return stats;
+	}
+
+	/**
+	 * Makes all the channels transfer through a block cache of
+	 * <CODE>nblocks</CODE> blocks. It must be called before the DMA is
+	 * ticked.
+	 *
+	 * @param nblocks the number of blocks of the cache
+	 */
+	public void setCache ( int nblocks )
+	{
+		cache=new MarsBlockCache(storage,nblocks);
+		for (int i=0; i<channels.length; i++)
+			channels[i].setCache(cache);
+	}
+
+	/**
+	 * Returns the block cache, or null if the DMA hasn't one.
+	 */
+	public MarsBlockCache getCache()
+	{
+		return cache;
+	}
+
+	/**
+	 * Makes all the channels stage their writes in a journal. It must be
+	 * called before the DMA is ticked.
+	 *
+	 * @param journal the journal of the storage
+	 */
+	public void setJournal ( MarsJournal journal )
+	{
+		this.journal=journal;
+		for (int i=0; i<channels.length; i++)
+			channels[i].setJournal(journal);
+	}
+
+	/**
+	 * Enables the read-ahead of the file descriptors opened from now on.
+	 *
+	 * @param max the largest read-ahead window, in cells; 0 disables it
+	 */
+	public void setReadAhead ( int max )
+	{
+		readahead=max;
+	}
+
+	/**
+	 * Creates the read-ahead of a file descriptor, which the DMA fills
+	 * in its free slots until it's closed.
+	 *
+	 * @param pid the process owning the file
+	 * @param file the id of the file
+	 * @param filesize the number of cells of the file
+	 * @return the read-ahead, or null if it's disabled
+	 */
+	public MarsReadAhead openReadAhead ( int pid, int file, int filesize )
+	{
+		if (readahead == 0)
+			return null;
+		MarsReadAhead ahead = new MarsReadAhead(pid,file,filesize,readahead);
+		synchronized (aheadlock) {
+			aheads[naheads++]=ahead;
+		}
+		return ahead;
+	}
+
+	/**
+	 * Stops filling a read-ahead, as its file descriptor has been closed.
+	 *
+	 * @param ahead the read-ahead
+	 */
+	public void closeReadAhead ( MarsReadAhead ahead )
+	{
+		synchronized (aheadlock) {
+			for (int i=0; i<naheads; i++)
+				if (aheads[i] == ahead) {
+					aheads[i]=aheads[--naheads];
+					aheads[naheads]=null;
+					return;
+				}
+		}
+	}
+
+	/**
+	 * Removes the file <CODE>file</CODE> from the storage, dropping its
+	 * cached blocks and read-aheads, so that nothing of it reaches the
+	 * file its ID is given to next. A file still open, or with requests
+	 * or journal records pending, isn't removed.
+	 *
+	 * @param file the id of the file
+	 * @return true if the file has been removed
+	 */
+	public synchronized boolean removeFile ( int file )
+	{
+		MarsFile f = storage.getMarsStorageFile(file);
+		if (f == null || f.getMarsFileIsOpen())
+			return false;
+		for (int i=0; i<channels.length; i++)
+			if (channels[i].hasRequests(file))
+				return false;
+		if (journal != null && journal.hasRecords(file))
+			return false;
+		synchronized (aheadlock) {
+			for (int i=naheads-1; i>=0; i--)
+				if (aheads[i].getFile() == file) {
+					aheads[i]=aheads[--naheads];
+					aheads[naheads]=null;
+				}
+		}
+		if (cache != null)
+			cache.drop(file);
+		/* the records already applied would be replayed on the new file */
+		if (journal != null)
+			journal.checkpoint(cache);
+		storage.removeMarsStorageFile(file);
+		return true;
+	}
+
+	/* the channel serving a request */
+	private MarsDMAChannel channelOf ( int pid, int file )
+	{
+		int key = ( affinity==AFFINITY_FILE ? file : pid );
+		return channels[key % channels.length];
 	}
 
 	/**
@@ -80,7 +310,7 @@ public class MarsDMA extends Thread implements DMA, TimerUser
 	 */
 	public void setInterruptHandler ( int irqn, InterruptHandler handler )
 	{
-		this.handler = (MarsInterruptHandler) handler;
+		this.handler = handler;
 		/* irqn is unused, as it's always 3 */
 	}
 
@@ -88,7 +318,7 @@ public class MarsDMA extends Thread implements DMA, TimerUser
 	 * Gets the interrupt handler set to be used when
 	 * an I/O operation ends.
 	 */
-	public MarsInterruptHandler getInterruptHandler()
+	public InterruptHandler getInterruptHandler()
 	{
 		return handler;
 	}
@@ -114,23 +344,137 @@ public class MarsDMA extends Thread implements DMA, TimerUser
 	 */
 	private void doIO()
 	{
-		boolean ret;
 		while(!ticked)
 			try { this.wait();
 			} catch (InterruptedException e) {}
 		if (dead)
 			return;
-		if (write_turn && performWrite(false))
-			write_turn=false;
-		else {
-			ret=performRead();
-			write_turn=true;
-		}
-		timer.tickCompleted(myID);
+		timer.tickCompleted(myID,runTicks(timer.getTickWindow()));
 		ticked=false;
 		return;
 	}
 
+	/**
+	 * Performs the I/O of up to <CODE>ticks</CODE> ticks, one transfer
+	 * per channel per tick, stopping right after a tick that completes
+	 * a request. The channels are served in turn starting from a
+	 * different one at every tick, so that none of them always raises
+	 * its completions first. When all the queues are empty the rest of
+	 * the window is idle and is skipped at once.
+	 *
+	 * @param ticks the number of ticks that may be performed
+	 * @return the number of ticks performed
+	 */
+	public int runTicks ( int ticks )
+	{
+		int done = 0;
+		int start = (int)timer.getWindowStart();
+		while (done < ticks && !dead) {
+			if (isIdle()) {
+				if (journal != null && journal.sync(cache,handler,stats,start+done) > 0) {
+					/* the completions are raised in the next tick */
+					done++;
+					break;
+				}
+				idleTicks(ticks-done);
+				return ticks;
+			}
+			boolean completed = false;
+			int free = 0;
+			for (int i=0; i<channels.length; i++) {
+				MarsDMAChannel c = channels[(first+i) % channels.length];
+				if (c.isIdle()) {
+					c.idle();
+					free++;
+				}
+				else if (c.transfer(handler,start+done))
+					completed = true;
+			}
+			prefetch(free);
+			if (journal != null && journal.isDue(isWriting())
+					&& journal.sync(cache,handler,stats,start+done) > 0)
+				completed = true;
+			first = (first+1) % channels.length;
+			done++;
+			if (completed)
+				break;
+		}
+		return done;
+	}
+
+	/**
+	 * An idle tick gives the next turn to the writes, as in
+	 * <CODE>runTicks()</CODE>, and lets every channel fill a
+	 * read-ahead window.
+	 *
+	 * @param ticks the number of idle ticks
+	 */
+	public void idleTicks ( int ticks )
+	{
+		if (ticks > 0) {
+			for (int i=0; i<channels.length; i++)
+				channels[i].idle();
+			prefetch(ticks*channels.length);
+		}
+	}
+
+	/* fills the read-ahead windows in turn, a burst per free slot,
+	 * until the slots or the windows to fill are over */
+	private void prefetch ( long slots )
+	{
+		synchronized (aheadlock) {
+			int empty = 0;
+			while (slots > 0 && empty < naheads) {
+				if (nextahead >= naheads)
+					nextahead=0;
+				if (aheads[nextahead++].fill(storage,cache,burst) > 0) {
+					slots--;
+					empty=0;
+				}
+				else
+					empty++;
+			}
+		}
+	}
+
+	/* tells whether some channel has write requests pending */
+	private boolean isWriting()
+	{
+		for (int i=0; i<channels.length; i++)
+			if (channels[i].isWriting())
+				return true;
+		return false;
+	}
+
+	/**
+	 * Tells whether the request queues of all the channels are empty.
+	 *
+	 * @return true if there is no transfer to perform
+	 */
+	public boolean isIdle()
+	{
+		for (int i=0; i<channels.length; i++)
+			if (!channels[i].isIdle())
+				return false;
+		return true;
+	}
+
+	/**
+	 * Tells whether a completion is still to come: a transfer queued, a
+	 * journaled write not synced yet or an interrupt not delivered yet.
+	 *
+	 * @return false if no thread waiting for the DMA will be awakened
+	 */
+	public boolean isPending()
+	{
+		if (!isIdle())
+			return true;
+		if (journal != null && journal.isPending())
+			return true;
+		return ( (handler instanceof MarsInterruptController)
+				&& ((MarsInterruptController)handler).isPending() );
+	}
+
 	/**
 	 * Sets current thread dead.
 	 */
@@ -147,8 +491,39 @@ public class MarsDMA extends Thread implements DMA, TimerUser
 	 */
 	private void flushPendingWriteRequests()
 	{
-		while (writeq.size()>0)
-			performWrite(true);
+		for (int i=0; i<channels.length; i++)
+			channels[i].flush();
+		if (journal != null) {
+			journal.sync(cache,null,null,0);
+			journal.checkpoint(cache);
+		}
+		else if (cache != null)
+			cache.flush();
+	}
+
+	/**
+	 * Serves a read from the read-ahead window of its file descriptor,
+	 * if all its cells have been prefetched: they're copied into memory
+	 * at once and the completion interrupt is raised without waiting for
+	 * a transfer. The interrupt goes through the interrupt controller,
+	 * so it's delivered after the syscall has held the thread.
+	 *
+	 * @param ahead the read-ahead of the file descriptor, or null
+	 * @param offset the file position from which to begin reading cells.
+	 * @param size the number of cells to be moved.
+	 * @param address the memory address where to store the cells.
+	 * @return true if the read has been served, false if it must be
+	 * enqueued with <CODE>read()</CODE>
+	 */
+	public boolean readAhead ( MarsReadAhead ahead, int offset, int size, int address )
+	{
+		if (ahead == null || size <= 0 || !ahead.read(offset,size,memory,address))
+			return false;
+		/* completed in the very tick of the syscall, which counts as
+		 * the tick of a transfer does */
+		stats.record(1);
+		handler.interrupt(3,sched.getPID(),sched.getTID());
+		return true;
 	}
 
 	/**
@@ -165,18 +540,11 @@ public class MarsDMA extends Thread implements DMA, TimerUser
 	 * @param size the number of cells to be moved.
 	 * @param address the memory address where to store the cells.
 	 */
-	public synchronized void read ( int file, int offset, int size, int address )
-	{
-		int pid = sched.getPID();
-		int tid = sched.getTID();
-		while (size>0) {
-			int tmpsize = ( size > maxrw ? maxrw : size );
-			int fin = ( size == tmpsize ? 0 : 1 );
-			int[] listel = {file,address,offset,tmpsize,pid,tid,fin};
-			readq.add(listel);
-			offset += tmpsize;
-			address += tmpsize;
-			size -= tmpsize;
+	public void read ( int file, int offset, int size, int address )
+	{
+		if (size>0) {
+			int pid = sched.getPID();
+			channelOf(pid,file).read(file,offset,size,address,pid,sched.getTID(),issueTick());
 		}
 	}
 
@@ -194,52 +562,62 @@ public class MarsDMA extends Thread implements DMA, TimerUser
 	 * @param size the number of cells to be moved.
 	 * @param address the memory address where to begin reading cells.
 	 */
-	public synchronized void write ( int file, int offset, int size, int address )
-	{
-		int pid = sched.getPID();
-		int tid = sched.getTID();
-		while (size>0) {
-			int tmpsize = ( size > maxrw ? maxrw : size );
-			int fin = ( size == tmpsize ? 0 : 1 );
-			int[] listel = {address,file,offset,size,pid,tid,fin};
-			writeq.add(listel);
-			offset += tmpsize;
-			address += tmpsize;
-			size -= tmpsize;
+	public void write ( int file, int offset, int size, int address )
+	{
+		if (size>0) {
+			synchronized (aheadlock) {
+				for (int i=0; i<naheads; i++)
+					if (aheads[i].getFile() == file)
+						aheads[i].invalidate();
+			}
+			int pid = sched.getPID();
+			channelOf(pid,file).write(file,offset,size,address,pid,sched.getTID(),issueTick());
 		}
 	}
 
-	private synchronized boolean performRead()
+	/* the tick of the step raising the syscall being served */
+	private int issueTick()
 	{
-		int[] element;
-		if (readq.size()<1) {
-			//System.out.println("Read queue is empty!");
-			return false;
-		}
-		element = (int[])readq.remove(0);
-		MarsCell[] tmp = new MarsCell[element[3]];
-		tmp=(MarsCell[])storage.read(element[4],element[0],element[2],element[3]);
-		for ( int i=0; i<element[3]; i++,element[1]++)
-			memory.writeCell(element[1],tmp[i]);
-		if (element[6]==0)
-			handler.interrupt(3,element[4],element[5]);
-		return true;
+		return (int)timer.getWindowStart()+processor.getWindowTick();
 	}
 
-	private synchronized boolean performWrite (boolean flush)
+	/**
+	 * Returns the number of ints written by <CODE>saveState()</CODE>.
+	 */
+	public synchronized int getStateSize()
 	{
-		int[] element;
-		if (writeq.size()<1) {
-			//System.out.println("Write queue is empty!");
-			return false;
-		}
-		element = (int[])writeq.remove(0);
-		MarsCell[] tmp = new MarsCell[element[3]];
-		for ( int i=0; i<element[3]; i++,element[0]++)
-			tmp[i]=(MarsCell)memory.readCell(element[0]);
-		storage.write(element[4],element[1],element[2],tmp);
-		if (!flush && element[6]==0)
-			handler.interrupt(3,element[4],element[5]);
-		return true;
+		int size = 1;
+		for (int i=0; i<channels.length; i++)
+			size += channels[i].getStateSize();
+		return size;
+	}
+
+	/**
+	 * Saves the pending read and write requests of every channel. The
+	 * DMA must not be ticked while saving.
+	 *
+	 * @param dst where to store the state
+	 */
+	public synchronized void saveState ( IntBuffer dst )
+	{
+		dst.put(channels.length);
+		for (int i=0; i<channels.length; i++)
+			channels[i].saveState(dst);
+	}
+
+	/**
+	 * Restores the requests saved by <CODE>saveState()</CODE>.
+	 *
+	 * @param src where to read the state
+	 * @throws IllegalStateException if the state was saved by a DMA
+	 * with a different number of channels
+	 */
+	public synchronized void loadState ( IntBuffer src )
+	{
+		int n = src.get();
+		if (n != channels.length)
+			throw new IllegalStateException("state saved with "+n+" DMA channels, not "+channels.length);
+		for (int i=0; i<channels.length; i++)
+			channels[i].loadState(src);
 	}
 }
@@ -0,0 +1,295 @@
+/**
+ *  This class is a channel of the DMA: it has its own read and write
+ *  queues and performs one transfer per tick, alternating reads and
+ *  writes, independently of the other channels. The DMA gives every
+ *  channel a tick and routes each request to a channel by affinity,
+ *  so the transfers of different processes (or files) go on in
+ *  parallel instead of waiting in a single queue.
+ *  A transfer isn't bound to a single request: the requests following
+ *  the first one in the queue that continue it, on the same file of
+ *  the same process and on the next memory cells, are coalesced into
+ *  it up to the burst size, and each of them is completed on its own.
+ *  Which request of a queue is served first is chosen by its policy.
+ *  If the DMA has a block cache the transfers go through it instead of
+ *  reaching the storage directly; if the storage has a journal the
+ *  writes are staged in it, and completed only when it's synced.
+ *  ----------------------------------------------------------------
+ *  @author Ciro Mattia Gonano <CODE>&lt;gonano@CS.UniBO.It&gt;</CODE>
+ *  @author Jacopo Saporetti <CODE>&lt;saporet3@CS.UniBO.It&gt;</CODE>
+ *  @author Mauro Seno <CODE>&lt;mseno@CS.UniBO.It&gt;</CODE>
+ *  ________________________________________________________________
+ */
+
+import java.nio.IntBuffer;
+
+public class MarsDMAChannel
+{
+	private MarsStorage storage;
+	private MarsBlockCache cache;
+	private MarsJournal journal;
+	private PrimitiveMemory memory;
+	private MarsDMAQueue readq;
+	private MarsDMAQueue writeq;
+	private boolean write_turn;
+	private int burst;
+	private int coresize;
+	private DMAPolicy readpolicy;
+	private DMAPolicy writepolicy;
+	private MarsDMAStats stats;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param stor the storage the files are read from and written to
+	 * @param mem the core memory
+	 * @param pending the maximum number of pending requests per queue
+	 * @param burst the maximum number of cells moved per tick, at most
+	 * the core size
+	 * @param stats where to record the waits of the requests
+	 */
+	public MarsDMAChannel ( MarsStorage stor, PrimitiveMemory mem, int pending, int burst, MarsDMAStats stats )
+	{
+		this.stats=stats;
+		readpolicy=new MarsDMAFifoPolicy();
+		writepolicy=readpolicy;
+		storage=stor;
+		memory=mem;
+		coresize=mem.getCoreSize();
+		this.burst=Math.min(burst,coresize);
+		readq=new MarsDMAQueue(pending);
+		writeq=new MarsDMAQueue(pending);
+	}
+
+	/**
+	 * Sets the policies choosing the next read and the next write. It
+	 * must be called before the channel is ticked.
+	 *
+	 * @param read the policy of the read queue
+	 * @param write the policy of the write queue
+	 */
+	public synchronized void setPolicies ( DMAPolicy read, DMAPolicy write )
+	{
+		readpolicy=read;
+		writepolicy=write;
+	}
+
+	/**
+	 * Sets the block cache the transfers go through; null to reach the
+	 * storage directly. It must be called before the channel is ticked.
+	 *
+	 * @param cache the cache, shared with the other channels
+	 */
+	public synchronized void setCache ( MarsBlockCache cache )
+	{
+		this.cache=cache;
+	}
+
+	/**
+	 * Sets the journal the writes are staged in; null to write them at
+	 * once. It must be called before the channel is ticked.
+	 *
+	 * @param journal the journal, shared with the other channels
+	 */
+	public synchronized void setJournal ( MarsJournal journal )
+	{
+		this.journal=journal;
+	}
+
+	/**
+	 * Enqueues a read request of <CODE>size</CODE> cells, made at the
+	 * tick <CODE>arrival</CODE>.
+	 */
+	public void read ( int file, int offset, int size, int address, int pid, int tid, int arrival )
+	{
+		readq.add(file,address,offset,size,pid,tid,arrival);
+	}
+
+	/**
+	 * Enqueues a write request of <CODE>size</CODE> cells, made at the
+	 * tick <CODE>arrival</CODE>.
+	 */
+	public void write ( int file, int offset, int size, int address, int pid, int tid, int arrival )
+	{
+		writeq.add(file,address,offset,size,pid,tid,arrival);
+	}
+
+	/**
+	 * Tells whether there are write requests pending.
+	 */
+	public boolean isWriting()
+	{
+		return !writeq.isEmpty();
+	}
+
+	/**
+	 * Tells whether there are requests pending on the file
+	 * <CODE>file</CODE>.
+	 */
+	public synchronized boolean hasRequests ( int file )
+	{
+		for (int n=0; n<readq.size(); n++)
+			if (readq.get(n,MarsDMAQueue.FILE) == file)
+				return true;
+		for (int n=0; n<writeq.size(); n++)
+			if (writeq.get(n,MarsDMAQueue.FILE) == file)
+				return true;
+		return false;
+	}
+
+	/**
+	 * Tells whether both request queues are empty.
+	 */
+	public boolean isIdle()
+	{
+		return readq.isEmpty() && writeq.isEmpty();
+	}
+
+	/**
+	 * Performs the transfer of a tick: a write if it's its turn and
+	 * there is one, a read otherwise. When the transfer completes a
+	 * request the interrupt 3 is raised with its pid and tid.
+	 *
+	 * @param handler the handler of the completion interrupt
+	 * @param now the current tick, truncated to an int
+	 * @return true if a request has been completed
+	 */
+	public synchronized boolean transfer ( InterruptHandler handler, int now )
+	{
+		boolean completed;
+		if (write_turn && !writeq.isEmpty()) {
+			completed=perform(writeq,writepolicy,false,handler,now);
+			write_turn=false;
+		}
+		else {
+			completed=perform(readq,readpolicy,true,handler,now);
+			write_turn=true;
+		}
+		return completed;
+	}
+
+	/**
+	 * An idle tick gives the next turn to the writes.
+	 */
+	public synchronized void idle()
+	{
+		write_turn=true;
+	}
+
+	/**
+	 * Performs all the pending writes at once, without raising their
+	 * completions.
+	 */
+	public synchronized void flush()
+	{
+		while (!writeq.isEmpty())
+			perform(writeq,writepolicy,false,null,0);
+	}
+
+	/**
+	 * Returns the number of ints written by <CODE>saveState()</CODE>.
+	 */
+	public synchronized int getStateSize()
+	{
+		return 3 + MarsDMAQueue.STRIDE*(readq.size()+writeq.size());
+	}
+
+	/**
+	 * Saves the pending read and write requests.
+	 *
+	 * @param dst where to store the state
+	 */
+	public synchronized void saveState ( IntBuffer dst )
+	{
+		dst.put( write_turn ? 1 : 0 );
+		readq.save(dst);
+		writeq.save(dst);
+	}
+
+	/**
+	 * Restores the requests saved by <CODE>saveState()</CODE>.
+	 *
+	 * @param src where to read the state
+	 */
+	public synchronized void loadState ( IntBuffer src )
+	{
+		write_turn = ( src.get()==1 );
+		readq.load(src);
+		writeq.load(src);
+	}
+
+	/* performs a transfer of at most burst cells from the first request
+	 * on, and raises the completion of every request it ends; a null
+	 * handler means no completion is wanted */
+	private boolean perform ( MarsDMAQueue q, DMAPolicy policy, boolean read, InterruptHandler handler, int now )
+	{
+		if (q.isEmpty()) {
+			//System.out.println("Queue is empty!");
+			return false;
+		}
+		if (q.size() > 1) {
+			int n = policy.select(q,now);
+			if (n > 0)
+				q.promote(n);
+		}
+		int file = q.get(MarsDMAQueue.FILE);
+		int address = q.get(MarsDMAQueue.ADDRESS);
+		int offset = q.get(MarsDMAQueue.OFFSET);
+		int pid = q.get(MarsDMAQueue.PID);
+		int cells = coalesce(q,file,address,offset,pid);
+		if (!read && journal != null)
+			journal.stage(pid,file,offset,cells,memory,address);
+		else if (cache != null) {
+			if (read)
+				cache.readToMemory(pid,file,offset,cells,memory,address);
+			else
+				cache.writeFromMemory(pid,file,offset,cells,memory,address);
+		}
+		else if (read)
+			storage.readToMemory(pid,file,offset,cells,memory,address);
+		else
+			storage.writeFromMemory(pid,file,offset,cells,memory,address);
+		boolean completed = false;
+		while (cells > 0) {
+			int size = q.get(MarsDMAQueue.SIZE);
+			if (size > cells) {
+				q.set(MarsDMAQueue.ADDRESS,q.get(MarsDMAQueue.ADDRESS)+cells);
+				q.set(MarsDMAQueue.OFFSET,q.get(MarsDMAQueue.OFFSET)+cells);
+				q.set(MarsDMAQueue.SIZE,size-cells);
+				break;
+			}
+			int tid = q.get(MarsDMAQueue.TID);
+			int arrival = q.get(MarsDMAQueue.ARRIVAL);
+			pid = q.get(MarsDMAQueue.PID);
+			q.remove();
+			cells -= size;
+			if (!read && journal != null)
+				/* completed, and recorded, when the journal is synced */
+				journal.commit(file,pid,tid,arrival,handler!=null);
+			else if (handler != null) {
+				stats.record(now+1-arrival);	// the tick of the transfer counts
+				handler.interrupt(3,pid,tid);
+				completed = true;
+			}
+		}
+		return completed;
+	}
+
+	/* returns how many cells, up to burst, continue the first request
+	 * through the requests contiguous to it */
+	private int coalesce ( MarsDMAQueue q, int file, int address, int offset, int pid )
+	{
+		int cells = 0;
+		for (int n=0; n<q.size() && cells<burst; n++) {
+			if (n > 0 && ( q.get(n,MarsDMAQueue.FILE)!=file
+					|| q.get(n,MarsDMAQueue.PID)!=pid
+					|| q.get(n,MarsDMAQueue.OFFSET)!=offset+cells
+					|| (q.get(n,MarsDMAQueue.ADDRESS)-(address+cells)) % coresize != 0 ))
+				break;
+			int size = q.get(n,MarsDMAQueue.SIZE);
+			if (size > burst-cells)
+				return burst;
+			cells += size;
+		}
+		return cells;
+	}
+}
@@ -0,0 +1,42 @@
+/**
+ *  This DMA policy serves first the request with the earliest deadline.
+ *  A request is due a number of quanta after its arrival that grows
+ *  with the priority number of its thread: <CODE>Quantum*(priority+1)</CODE>
+ *  ticks, so a high priority thread gets a close deadline but a low
+ *  priority one doesn't starve. Equal deadlines are served in order of
+ *  arrival.
+ *  ----------------------------------------------------------------
+ *  @author Ciro Mattia Gonano <CODE>&lt;gonano@CS.UniBO.It&gt;</CODE>
+ *  @author Jacopo Saporetti <CODE>&lt;saporet3@CS.UniBO.It&gt;</CODE>
+ *  @author Mauro Seno <CODE>&lt;mseno@CS.UniBO.It&gt;</CODE>
+ *  ________________________________________________________________
+ */
+
+public class MarsDMADeadlinePolicy implements DMAPolicy
+{
+	private MarsScheduler sched;
+	private int quantum;
+
+	public MarsDMADeadlinePolicy ( MarsScheduler scheduler )
+	{
+		sched = scheduler;
+		quantum = new MarsSystemConstant().getQuantum();
+	}
+
+	public int select ( MarsDMAQueue q, int now )
+	{
+		int best = 0;
+		int bestleft = Integer.MAX_VALUE;
+		for (int n=0; n<q.size(); n++) {
+			int pri = sched.getPriority(q.get(n,MarsDMAQueue.PID),q.get(n,MarsDMAQueue.TID));
+			/* ticks left to the deadline, negative when it's past; the
+			 * difference stays right when the ticks wrap around an int */
+			int left = q.get(n,MarsDMAQueue.ARRIVAL)+quantum*(pri+1)-now;
+			if (left < bestleft) {
+				best = n;
+				bestleft = left;
+			}
+		}
+		return best;
+	}
+}
@@ -0,0 +1,55 @@
+/**
+ *  This DMA policy sweeps the storage like a disk elevator: it serves
+ *  the requests in order of position, first upwards from the last
+ *  position served and then, when there is no request above it,
+ *  downwards, and so on. The position of a request is its file and its
+ *  offset in the file, as if the files were laid out one after another.
+ *  ----------------------------------------------------------------
+ *  @author Ciro Mattia Gonano <CODE>&lt;gonano@CS.UniBO.It&gt;</CODE>
+ *  @author Jacopo Saporetti <CODE>&lt;saporet3@CS.UniBO.It&gt;</CODE>
+ *  @author Mauro Seno <CODE>&lt;mseno@CS.UniBO.It&gt;</CODE>
+ *  ________________________________________________________________
+ */
+
+public class MarsDMAElevatorPolicy implements DMAPolicy
+{
+	private long position;
+	private boolean up;
+
+	public MarsDMAElevatorPolicy()
+	{
+		position = 0;
+		up = true;
+	}
+
+	public int select ( MarsDMAQueue q, int now )
+	{
+		int n = nearest(q);
+		if (n < 0) {
+			up = !up;
+			n = nearest(q);
+		}
+		position = positionOf(q,n);
+		return n;
+	}
+
+	/* the closest request in the current direction, or -1 */
+	private int nearest ( MarsDMAQueue q )
+	{
+		int best = -1;
+		long bestdist = Long.MAX_VALUE;
+		for (int n=0; n<q.size(); n++) {
+			long dist = ( up ? positionOf(q,n)-position : position-positionOf(q,n) );
+			if (dist >= 0 && dist < bestdist) {
+				best = n;
+				bestdist = dist;
+			}
+		}
+		return best;
+	}
+
+	private static long positionOf ( MarsDMAQueue q, int n )
+	{
+		return ((long)q.get(n,MarsDMAQueue.FILE)<<32) | (q.get(n,MarsDMAQueue.OFFSET) & 0xFFFFFFFFL);
+	}
+}
@@ -0,0 +1,16 @@
+/**
+ *  This DMA policy serves the requests in order of arrival.
+ *  ----------------------------------------------------------------
+ *  @author Ciro Mattia Gonano <CODE>&lt;gonano@CS.UniBO.It&gt;</CODE>
+ *  @author Jacopo Saporetti <CODE>&lt;saporet3@CS.UniBO.It&gt;</CODE>
+ *  @author Mauro Seno <CODE>&lt;mseno@CS.UniBO.It&gt;</CODE>
+ *  ________________________________________________________________
+ */
+
+public class MarsDMAFifoPolicy implements DMAPolicy
+{
+	public int select ( MarsDMAQueue q, int now )
+	{
+		return 0;
+	}
+}
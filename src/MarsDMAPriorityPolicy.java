@@ -0,0 +1,35 @@
+/**
+ *  This DMA policy serves first the request of the thread with the
+ *  highest priority in the scheduler, so that the I/O-bound threads the
+ *  scheduler promotes are also promoted by the DMA. Requests of the
+ *  same priority are served in order of arrival.
+ *  ----------------------------------------------------------------
+ *  @author Ciro Mattia Gonano <CODE>&lt;gonano@CS.UniBO.It&gt;</CODE>
+ *  @author Jacopo Saporetti <CODE>&lt;saporet3@CS.UniBO.It&gt;</CODE>
+ *  @author Mauro Seno <CODE>&lt;mseno@CS.UniBO.It&gt;</CODE>
+ *  ________________________________________________________________
+ */
+
+public class MarsDMAPriorityPolicy implements DMAPolicy
+{
+	private MarsScheduler sched;
+
+	public MarsDMAPriorityPolicy ( MarsScheduler scheduler )
+	{
+		sched = scheduler;
+	}
+
+	public int select ( MarsDMAQueue q, int now )
+	{
+		int best = 0;
+		int bestpri = Integer.MAX_VALUE;
+		for (int n=0; n<q.size(); n++) {
+			int pri = sched.getPriority(q.get(n,MarsDMAQueue.PID),q.get(n,MarsDMAQueue.TID));
+			if (pri < bestpri) {
+				best = n;
+				bestpri = pri;
+			}
+		}
+		return best;
+	}
+}
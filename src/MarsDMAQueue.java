@@ -0,0 +1,185 @@
+/**
+ *  This class is a queue of DMA requests kept in a preallocated ring
+ *  of ints. A request is packed in <CODE>STRIDE</CODE> consecutive
+ *  ints and is consumed in place, one chunk after another, so neither
+ *  enqueuing nor dequeuing allocates anything.
+ *  The queue has a single producer (the thread raising the syscalls)
+ *  and a single consumer (the DMA): the producer only moves the tail
+ *  and the consumer only moves the head, so no lock is needed.
+ *  ----------------------------------------------------------------
+ *  @author Ciro Mattia Gonano <CODE>&lt;gonano@CS.UniBO.It&gt;</CODE>
+ *  @author Jacopo Saporetti <CODE>&lt;saporet3@CS.UniBO.It&gt;</CODE>
+ *  @author Mauro Seno <CODE>&lt;mseno@CS.UniBO.It&gt;</CODE>
+ *  ________________________________________________________________
+ */
+
+import java.nio.IntBuffer;
+
+public class MarsDMAQueue
+{
+	/* fields of a request */
+	public static final int FILE = 0;
+	public static final int ADDRESS = 1;
+	public static final int OFFSET = 2;
+	public static final int SIZE = 3;	/* cells still to be moved */
+	public static final int PID = 4;
+	public static final int TID = 5;
+	public static final int ARRIVAL = 6;	/* tick of the request, truncated to an int */
+
+	/** Number of ints of a request */
+	public static final int STRIDE = 7;
+
+	private int[] ring;
+	private int mask;
+	private volatile int head;	/* next request to consume */
+	private volatile int tail;	/* next free slot */
+	private int[] moved;		/* the request being promoted */
+
+	/**
+	 * Constructor.
+	 *
+	 * @param capacity the maximum number of pending requests, rounded
+	 * up to a power of two
+	 */
+	public MarsDMAQueue ( int capacity )
+	{
+		int slots = 1;
+		while (slots < capacity)
+			slots <<= 1;
+		ring = new int[STRIDE*slots];
+		mask = slots-1;
+		moved = new int[STRIDE];
+		head = 0;
+		tail = 0;
+	}
+
+	/**
+	 * Returns the maximum number of pending requests.
+	 */
+	public int getCapacity()
+	{
+		return mask+1;
+	}
+
+	/**
+	 * Returns the number of pending requests.
+	 */
+	public int size()
+	{
+		return tail-head;
+	}
+
+	public boolean isEmpty()
+	{
+		return head == tail;
+	}
+
+	/**
+	 * Appends a request. Called by the producer only.
+	 *
+	 * @throws IllegalStateException if the queue is full
+	 */
+	public void add ( int file, int address, int offset, int size, int pid, int tid, int arrival )
+	{
+		int t = tail;
+		if (t-head > mask)
+			throw new IllegalStateException("DMA queue full");
+		int base = STRIDE*(t & mask);
+		ring[base+FILE] = file;
+		ring[base+ADDRESS] = address;
+		ring[base+OFFSET] = offset;
+		ring[base+SIZE] = size;
+		ring[base+PID] = pid;
+		ring[base+TID] = tid;
+		ring[base+ARRIVAL] = arrival;
+		/* publishes the request to the consumer */
+		tail = t+1;
+	}
+
+	/**
+	 * Returns a field of the first request. Called by the consumer only.
+	 *
+	 * @param field one of FILE, ADDRESS, OFFSET, SIZE, PID, TID, ARRIVAL
+	 */
+	public int get ( int field )
+	{
+		return ring[STRIDE*(head & mask)+field];
+	}
+
+	/**
+	 * Returns a field of the <CODE>n</CODE>th pending request, counting
+	 * from 0 for the first one, e.g. to look for requests contiguous to
+	 * it. Called by the consumer only.
+	 *
+	 * @param n the position of the request, less than <CODE>size()</CODE>
+	 * @param field one of FILE, ADDRESS, OFFSET, SIZE, PID, TID, ARRIVAL
+	 */
+	public int get ( int n, int field )
+	{
+		return ring[STRIDE*((head+n) & mask)+field];
+	}
+
+	/**
+	 * Sets a field of the first request, e.g. to move it to the next
+	 * chunk. Called by the consumer only.
+	 */
+	public void set ( int field, int value )
+	{
+		ring[STRIDE*(head & mask)+field] = value;
+	}
+
+	/**
+	 * Moves the <CODE>n</CODE>th pending request to the head of the
+	 * queue, so that it's the next to be served; the requests before it
+	 * move back by one, keeping their order. Called by the consumer only.
+	 *
+	 * @param n the position of the request, less than <CODE>size()</CODE>
+	 */
+	public void promote ( int n )
+	{
+		int h = head;
+		System.arraycopy(ring,STRIDE*((h+n) & mask),moved,0,STRIDE);
+		for (int i=h+n; i!=h; i--)
+			System.arraycopy(ring,STRIDE*((i-1) & mask),ring,STRIDE*(i & mask),STRIDE);
+		System.arraycopy(moved,0,ring,STRIDE*(h & mask),STRIDE);
+	}
+
+	/**
+	 * Removes the first request. Called by the consumer only.
+	 */
+	public void remove()
+	{
+		head = head+1;
+	}
+
+	/**
+	 * Saves the pending requests, from the first one. Neither the
+	 * producer nor the consumer may run meanwhile.
+	 *
+	 * @param dst where to store the requests
+	 */
+	public void save ( IntBuffer dst )
+	{
+		dst.put(size());
+		for (int i=head; i!=tail; i++)
+			dst.put(ring,STRIDE*(i & mask),STRIDE);
+	}
+
+	/**
+	 * Replaces the pending requests with the ones saved by
+	 * <CODE>save()</CODE>.
+	 *
+	 * @param src where to read the requests
+	 * @throws IllegalStateException if they don't fit in the queue
+	 */
+	public void load ( IntBuffer src )
+	{
+		int n = src.get();
+		if (n > mask+1)
+			throw new IllegalStateException("DMA queue too small for "+n+" requests");
+		head = 0;
+		for (int i=0; i<n; i++)
+			src.get(ring,STRIDE*i,STRIDE);
+		tail = n;
+	}
+}
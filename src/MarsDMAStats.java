@@ -0,0 +1,96 @@
+/**
+ *  This class collects the waiting times of the DMA requests, from
+ *  the tick a thread raises the syscall to the tick its completion is
+ *  raised, both included, in a histogram of power-of-two buckets: bucket k counts
+ *  the waits of less than 2^k ticks (and at least 2^(k-1)), so the
+ *  percentiles are known within a factor of two with no allocation.
+ *  ----------------------------------------------------------------
+ *  @author Ciro Mattia Gonano <CODE>&lt;gonano@CS.UniBO.It&gt;</CODE>
+ *  @author Jacopo Saporetti <CODE>&lt;saporet3@CS.UniBO.It&gt;</CODE>
+ *  @author Mauro Seno <CODE>&lt;mseno@CS.UniBO.It&gt;</CODE>
+ *  ________________________________________________________________
+ */
+
+public class MarsDMAStats
+{
+	private static final int BUCKETS = 32;
+
+	private long[] histogram;
+	private long count;
+	private long total;
+	private int max;
+
+	public MarsDMAStats()
+	{
+		histogram = new long[BUCKETS];
+	}
+
+	/**
+	 * Records the wait of a completed request.
+	 *
+	 * @param ticks the ticks waited
+	 */
+	public synchronized void record ( int ticks )
+	{
+		if (ticks < 0)
+			ticks = 0;
+		histogram[32-Integer.numberOfLeadingZeros(ticks)]++;
+		count++;
+		total += ticks;
+		if (ticks > max)
+			max = ticks;
+	}
+
+	/**
+	 * Returns the number of completed requests.
+	 */
+	public synchronized long getCount()
+	{
+		return count;
+	}
+
+	/**
+	 * Returns the mean wait, in ticks.
+	 */
+	public synchronized double getMean()
+	{
+		return ( count==0 ? 0 : (double)total/count );
+	}
+
+	/**
+	 * Returns the longest wait, in ticks.
+	 */
+	public synchronized int getMax()
+	{
+		return max;
+	}
+
+	/**
+	 * Returns an upper bound of a percentile of the waits: the end of
+	 * the bucket holding it, but no more than the longest wait.
+	 *
+	 * @param p the percentile, between 0 and 100
+	 * @return the bound, in ticks
+	 */
+	public synchronized long getPercentile ( double p )
+	{
+		long rank = (long)Math.ceil(count*p/100);
+		long seen = 0;
+		for (int k=0; k<BUCKETS; k++) {
+			seen += histogram[k];
+			if (seen >= rank && seen > 0)
+				return Math.min((1L<<k)-1,max);
+		}
+		return max;
+	}
+
+	/**
+	 * Prints a summary of the waits.
+	 */
+	public synchronized void print()
+	{
+		System.out.println("DMA waits: "+count+" requests, mean "+(long)getMean()+
+				" ticks, p50 <= "+getPercentile(50)+", p99 <= "+getPercentile(99)+
+				", max "+max);
+	}
+}
@@ -0,0 +1,128 @@
+/**
+ *  This class contains the predecoded shadow of the core used by the
+ *  processor. For every cell it keeps the handler to be run (i.e. the
+ *  opcode, once checked) and the operands, already validated against
+ *  the number of registers, so that decoding and checks are paid once
+ *  per write of the cell instead of once per execution.
+ *  The memory fills an entry on request of the processor and empties
+ *  it whenever the cell is written, by the processor or by the DMA.
+ *  ----------------------------------------------------------------
+ *  @author Ciro Mattia Gonano <CODE>&lt;gonano@CS.UniBO.It&gt;</CODE>
+ *  @author Jacopo Saporetti <CODE>&lt;saporet3@CS.UniBO.It&gt;</CODE>
+ *  @author Mauro Seno <CODE>&lt;mseno@CS.UniBO.It&gt;</CODE>
+ *  ________________________________________________________________
+ */
+
+public class MarsDecodeCache
+{
+	/** Handler of an entry not decoded yet */
+	public static final int EMPTY = -1;
+
+	/** Handler of a cell with a wrong opcode or wrong operands */
+	public static final int INVALID = -2;
+
+	/* handler, operand A and operand B of cell i are at 3i, 3i+1, 3i+2 */
+	private int[] entries;
+	private int CoreSize;
+
+	/**
+	 * Constructor: every entry is empty.
+	 *
+	 * @param coresize the number of cells of the core
+	 */
+	public MarsDecodeCache ( int coresize )
+	{
+		CoreSize = coresize;
+		entries = new int[3*coresize];
+		invalidateAll();
+	}
+
+	/**
+	 * Returns the handler of the cell <CODE>i</CODE>: its opcode,
+	 * <CODE>INVALID</CODE> or <CODE>EMPTY</CODE>.
+	 *
+	 * @param i the (wrapped) index of the cell
+	 */
+	public int getHandler ( int i )
+	{
+		return entries[3*i];
+	}
+
+	/**
+	 * Returns the validated operand A of the cell <CODE>i</CODE>.
+	 *
+	 * @param i the (wrapped) index of the cell
+	 */
+	public int getOperandA ( int i )
+	{
+		return entries[3*i+1];
+	}
+
+	/**
+	 * Returns the validated operand B of the cell <CODE>i</CODE>.
+	 *
+	 * @param i the (wrapped) index of the cell
+	 */
+	public int getOperandB ( int i )
+	{
+		return entries[3*i+2];
+	}
+
+	/**
+	 * Decodes a cell and stores it in the entry <CODE>i</CODE>. It is
+	 * called by the memory while holding the lock of the cell, so that
+	 * a concurrent write can't leave a stale entry behind.
+	 *
+	 * @param i the (wrapped) index of the cell
+	 * @return the handler of the cell
+	 */
+	public int fill ( int i, int opcode, int a, int b )
+	{
+		int handler = INVALID;
+		if (a >= 0 && a < MarsProcessor.NREGISTERS && b >= 0 && b < MarsProcessor.NREGISTERS)
+			switch (opcode)
+			{
+				case 0: case 1: case 2: case 3: case 4: case 5:
+				case 6: case 7: case 8: case 9: case 10: case 11:
+				case 12: case 13: case 14: case 15: case 16:
+				case 32:
+					handler = opcode;
+					break;
+			}
+		entries[3*i+1] = a;
+		entries[3*i+2] = b;
+		entries[3*i] = handler;
+		return handler;
+	}
+
+	/**
+	 * Empties the entry of a cell that has been written.
+	 *
+	 * @param i the (wrapped) index of the cell
+	 */
+	public void invalidate ( int i )
+	{
+		entries[3*i] = EMPTY;
+	}
+
+	/**
+	 * Empties the entries of <CODE>count</CODE> cells written at once.
+	 *
+	 * @param i the (wrapped) index of the first cell
+	 * @param count the number of cells, not wrapping around the core
+	 */
+	public void invalidate ( int i, int count )
+	{
+		for (int end=3*(i+count), j=3*i; j<end; j+=3)
+			entries[j] = EMPTY;
+	}
+
+	/**
+	 * Empties all the entries, e.g. when the whole memory is reloaded.
+	 */
+	public void invalidateAll()
+	{
+		for (int i=0; i<CoreSize; i++)
+			entries[3*i] = EMPTY;
+	}
+}
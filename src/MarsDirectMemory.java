@@ -0,0 +1,233 @@
+/**
+ * This class contains an off-heap implementation of the interface
+ * "Memory": the cells are packed, three ints each, in a direct
+ * <CODE>ByteBuffer</CODE> allocated outside the Java heap, so that a
+ * core adds a single object for the garbage collector to trace.
+ * The memory should be closed with <CODE>close()</CODE> when the
+ * battle is over; any access after that throws an
+ * <CODE>IllegalStateException</CODE>. Closing is only advisory: it
+ * drops the references to the buffer, but the native memory is given
+ * back when the collector reclaims the buffer, as the standard API
+ * can't free it at once without risking an access by a thread still
+ * running.
+ * ----------------------------------------------------------------
+ *  @author Ciro Mattia Gonano <CODE>&lt;gonano@CS.UniBO.It&gt;</CODE>
+ *  @author Jacopo Saporetti <CODE>&lt;saporet3@CS.UniBO.It&gt;</CODE>
+ *  @author Mauro Seno <CODE>&lt;mseno@CS.UniBO.It&gt;</CODE>
+ * ________________________________________________________________
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+public class MarsDirectMemory implements PrimitiveMemory
+{
+	private static final int CELLBYTES = 12;
+
+	private MarsSystemConstant sysconst;
+	private ByteBuffer memory;
+	private IntBuffer cells;		/* int view of memory, for bulk copies */
+	private MarsCoreGeometry core;
+	private int CoreSize;
+	private MarsDecodeCache cache;
+
+	public MarsDirectMemory()
+	{
+		this(new MarsSystemConstant());
+	}
+
+	/**
+	 * Constructor for a core of the size given by <CODE>sysconst</CODE>.
+	 *
+	 * @param sysconst the constants of the battle
+	 */
+	public MarsDirectMemory ( MarsSystemConstant sysconst )
+	{
+		this.sysconst = sysconst;
+		CoreSize = sysconst.getCoreSize();
+		core = new MarsCoreGeometry(CoreSize);
+		memory = ByteBuffer.allocateDirect(CELLBYTES*CoreSize);
+		memory.order(ByteOrder.nativeOrder());
+		cells = memory.asIntBuffer();
+	}
+
+	/**
+	 * Returns the number of cells in the memory.
+	 */
+	public int getCoreSize()
+	{
+		return CoreSize;
+	}
+
+	/**
+	 * Closes the memory, which from now on can't be used. This is only
+	 * advisory: the native buffer is given back when the collector
+	 * reclaims it, not at once.
+	 */
+	public synchronized void close()
+	{
+		memory = null;
+		cells = null;
+	}
+
+	/**
+	 * Tells whether the memory has been closed.
+	 *
+	 * @return true if <CODE>close()</CODE> has been called
+	 */
+	public synchronized boolean isClosed()
+	{
+		return memory == null;
+	}
+
+	/* returns the byte offset of the cell pointed by index */
+	private int offset ( int index )
+	{
+		if (memory == null)
+			throw new IllegalStateException("memory has been closed");
+		return CELLBYTES*core.wrap(index);
+	}
+
+	/**
+	 * Reads the cell pointed by index.
+	 * @param index specifies the Cell wanted
+	 * @return a copy of the requested cell
+	 */
+	public synchronized Cell readCell ( int index )
+	{
+		int i = offset(index);
+		return new MarsCell(memory.getInt(i),memory.getInt(i+4),memory.getInt(i+8));
+	}
+
+	/**
+	 * Write in the cell pointed by <CODE>index</CODE>
+	 * the contents specified in <CODE>cell</CODE>.
+	 * @param index the index of the cell
+	 * @param cell the cell whose fields are to be copied
+	 */
+	public synchronized void writeCell ( int index, Cell cell )
+	{
+		int i = offset(index);
+		memory.putInt(i,cell.getOpcode());
+		memory.putInt(i+4,cell.getOperandA());
+		memory.putInt(i+8,cell.getOperandB());
+		written(i);
+	}
+
+	public synchronized int readOpcode ( int index )
+	{
+		return memory.getInt(offset(index));
+	}
+
+	public synchronized int readOperandA ( int index )
+	{
+		return memory.getInt(offset(index)+4);
+	}
+
+	public synchronized int readOperandB ( int index )
+	{
+		return memory.getInt(offset(index)+8);
+	}
+
+	public synchronized void writeOperandA ( int index, int val )
+	{
+		int i = offset(index);
+		memory.putInt(i+4,val);
+		written(i);
+	}
+
+	public synchronized void writeOperandB ( int index, int val )
+	{
+		int i = offset(index);
+		memory.putInt(i+8,val);
+		written(i);
+	}
+
+	public synchronized void writeCell ( int index, int opcode, int a, int b )
+	{
+		int i = offset(index);
+		memory.putInt(i,opcode);
+		memory.putInt(i+4,a);
+		memory.putInt(i+8,b);
+		written(i);
+	}
+
+	public synchronized void copyCell ( int to, int from )
+	{
+		int i = offset(to);
+		int j = offset(from);
+		memory.putInt(i,memory.getInt(j));
+		memory.putInt(i+4,memory.getInt(j+4));
+		memory.putInt(i+8,memory.getInt(j+8));
+		written(i);
+	}
+
+	public synchronized void readCells ( int index, int[] dst, int pos, int count )
+	{
+		if (count < 0 || count > CoreSize)
+			throw new IllegalArgumentException("can't read "+count+" cells");
+		int c = offset(index)/CELLBYTES;
+		int n = Math.min(count,CoreSize-c);
+		cells.position(3*c);
+		cells.get(dst,pos,3*n);
+		if (n < count) {
+			cells.position(0);
+			cells.get(dst,pos+3*n,3*(count-n));
+		}
+	}
+
+	public synchronized void writeCells ( int index, int[] src, int pos, int count )
+	{
+		if (count < 0 || count > CoreSize)
+			throw new IllegalArgumentException("can't write "+count+" cells");
+		int c = offset(index)/CELLBYTES;
+		int n = Math.min(count,CoreSize-c);
+		cells.position(3*c);
+		cells.put(src,pos,3*n);
+		if (cache != null)
+			cache.invalidate(c,n);
+		if (n < count) {
+			cells.position(0);
+			cells.put(src,pos+3*n,3*(count-n));
+			if (cache != null)
+				cache.invalidate(0,count-n);
+		}
+	}
+
+	public synchronized void saveCells ( IntBuffer dst )
+	{
+		offset(0);
+		dst.put(memory.duplicate().order(memory.order()).asIntBuffer());
+	}
+
+	public synchronized void loadCells ( IntBuffer src )
+	{
+		offset(0);
+		IntBuffer cells = memory.duplicate().order(memory.order()).asIntBuffer();
+		IntBuffer from = src.duplicate();
+		from.limit(from.position()+cells.capacity());
+		cells.put(from);
+		src.position(from.position());
+		if (cache != null)
+			cache.invalidateAll();
+	}
+
+	public synchronized void setDecodeCache ( MarsDecodeCache cache )
+	{
+		this.cache = cache;
+	}
+
+	public synchronized int predecode ( int index )
+	{
+		int i = offset(index);
+		return cache.fill(i/CELLBYTES,memory.getInt(i),memory.getInt(i+4),memory.getInt(i+8));
+	}
+
+	/* empties the decode cache entry of the cell at byte offset i */
+	private void written ( int i )
+	{
+		if (cache != null)
+			cache.invalidate(i/CELLBYTES);
+	}
+}
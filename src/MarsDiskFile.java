@@ -0,0 +1,300 @@
+/**
+ *  This is a Mars File whose cells live in a file on disk instead of
+ *  the heap. The file starts with a header (a magic number and the
+ *  owner's ID) followed by the cells, three big-endian ints each as in
+ *  a checkpoint; the cells are read and written in place with
+ *  positional <CODE>FileChannel</CODE> I/O, through buffers that are
+ *  reused from one call to the next. Every write goes through to the
+ *  disk, so the content outlives the simulation.
+ *  ----------------------------------------------------------------
+ *  @author Ciro Mattia Gonano <CODE>&lt;gonano@CS.UniBO.It&gt;</CODE>
+ *  @author Jacopo Saporetti <CODE>&lt;saporet3@CS.UniBO.It&gt;</CODE>
+ *  @author Mauro Seno <CODE>&lt;mseno@CS.UniBO.It&gt;</CODE>
+ *  ________________________________________________________________
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class MarsDiskFile extends MarsFile
+{
+	/** "MCEL" */
+	public static final int MAGIC = 0x4D43454C;
+	/** Bytes before the first cell: magic and owner */
+	public static final int HEADER = 8;
+	/** Bytes of a cell */
+	public static final int CELLBYTES = 12;
+
+	private FileChannel channel;
+	private int size;
+	private int[] cells;		/* the cells of the last transfer, packed */
+	private ByteBuffer bytes;	/* the same cells, as on disk */
+
+	/**
+	 * Creates the file <CODE>path</CODE> with the given content and
+	 * owner, replacing it if it exists.
+	 *
+	 * @param path the file on disk
+	 * @param myID the id of the new file
+	 * @param content the file's content
+	 * @param myownerID the id of the owner of new file
+	 * @throws IOException if the file can't be written
+	 */
+	public static MarsDiskFile create ( File path, int myID, MarsCell[] content, int myownerID ) throws IOException
+	{
+		FileChannel channel = new RandomAccessFile(path,"rw").getChannel();
+		MarsDiskFile file = new MarsDiskFile(channel,myID,myownerID,0);
+		try {
+			file.writeHeader();
+			file.setMarsFileContent(content);
+		} catch (IllegalStateException e) {
+			channel.close();
+			throw new IOException(e.getMessage());
+		}
+		return file;
+	}
+
+	/**
+	 * Opens the file <CODE>path</CODE>, written by a previous run.
+	 *
+	 * @param path the file on disk
+	 * @param myID the id of the file
+	 * @throws IOException if the file can't be read or isn't a Mars File
+	 */
+	public static MarsDiskFile open ( File path, int myID ) throws IOException
+	{
+		FileChannel channel = new RandomAccessFile(path,"rw").getChannel();
+		ByteBuffer header = ByteBuffer.allocate(HEADER);
+		if (channel.size() >= HEADER)
+			readFully(channel,header,0);
+		header.flip();
+		if (channel.size() < HEADER || header.getInt() != MAGIC
+				|| (channel.size()-HEADER) % CELLBYTES != 0) {
+			channel.close();
+			throw new IOException(path+" is not a Mars File");
+		}
+		return new MarsDiskFile(channel,myID,header.getInt(),(int)((channel.size()-HEADER)/CELLBYTES));
+	}
+
+	private MarsDiskFile ( FileChannel channel, int myID, int myownerID, int size )
+	{
+		super(myID,myownerID);
+		this.channel = channel;
+		this.size = size;
+		cells = new int[0];
+		bytes = ByteBuffer.allocate(0);
+	}
+
+	/**
+	 * Gets the file's size (i.e.: no. of Cells)
+	 * @return number of Cells
+	 */
+	public synchronized int getMarsFileSize()
+	{
+		return size;
+	}
+
+	/**
+	 * Sets the new file's ownerID, on disk too.
+	 * @param newownerID the new file's owner's ID.
+	 */
+	public synchronized void setMarsFileOwner ( int newownerID )
+	{
+		super.setMarsFileOwner(newownerID);
+		try { writeHeader();
+		} catch (IOException e) {
+			throw new IllegalStateException("can't write file "+getMarsFileId()+": "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Reads the whole file's content.
+	 * @return an array of <CODE>MarsCell</CODE> objects.
+	 */
+	public synchronized MarsCell[] getMarsFileContent()
+	{
+		return getMarsFileCells(0,size);
+	}
+
+	/**
+	 * Replaces the file's content, resizing the file on disk.
+	 * @param newcontent an array of <CODE>MarsCell</CODE> objects.
+	 */
+	public synchronized void setMarsFileContent ( MarsCell[] newcontent )
+	{
+		try { channel.truncate(HEADER+(long)CELLBYTES*newcontent.length);
+		} catch (IOException e) {
+			throw new IllegalStateException("can't write file "+getMarsFileId()+": "+e.getMessage());
+		}
+		size = newcontent.length;
+		if (size > 0)
+			setMarsFileCells(0,size,newcontent);
+	}
+
+	/**
+	 * Grows the file to <CODE>newsize</CODE> cells, writing the last
+	 * byte of the new cells: the ones between read as empty.
+	 * @param newsize the new file's size
+	 * @throws SecurityException if the file would be larger than
+	 * <CODE>MAXSIZE</CODE>
+	 */
+	public synchronized void extendMarsFile ( int newsize )
+	{
+		if (newsize <= size)
+			return;
+		if (newsize > MAXSIZE)
+			throw new SecurityException("write: file too large.");
+		try {
+			ByteBuffer zero = ByteBuffer.allocate(1);
+			long at = HEADER+(long)CELLBYTES*newsize-1;
+			while (zero.hasRemaining())
+				channel.write(zero,at);
+		} catch (IOException e) {
+			throw new IllegalStateException("can't write file "+getMarsFileId()+": "+e.getMessage());
+		}
+		size = newsize;
+	}
+
+	public synchronized MarsCell[] getMarsFileCells ( int pos, int num )
+	{
+		checkRead(pos,num);
+		load(pos,num);
+		MarsCell[] retarray = new MarsCell[num];
+		for ( int i=0; i<num; i++ )
+			retarray[i] = new MarsCell(cells[3*i],cells[3*i+1],cells[3*i+2]);
+		return retarray;
+	}
+
+	public synchronized void setMarsFileCell ( int pos, MarsCell towrite )
+	{
+		if (pos>=size)
+			throw new SecurityException("write: out of file size.");
+		setMarsFileCells(pos,1,new MarsCell[] { towrite });
+	}
+
+	public synchronized void setMarsFileCells ( int pos, int num, MarsCell[] towrite )
+	{
+		checkWrite(pos,num);
+		reserve(num);
+		for ( int i=0; i<num; i++ ) {
+			cells[3*i] = towrite[i].getOpcode();
+			cells[3*i+1] = towrite[i].getOperandA();
+			cells[3*i+2] = towrite[i].getOperandB();
+		}
+		store(pos,num);
+	}
+
+	public synchronized void transferTo ( int pos, int num, PrimitiveMemory memory, int address )
+	{
+		checkRead(pos,num);
+		load(pos,num);
+		memory.writeCells(address,cells,0,num);
+	}
+
+	public synchronized void transferFrom ( int pos, int num, PrimitiveMemory memory, int address )
+	{
+		checkWrite(pos,num);
+		reserve(num);
+		memory.readCells(address,cells,0,num);
+		store(pos,num);
+	}
+
+	public synchronized void readCells ( int pos, int num, int[] dst, int dstpos )
+	{
+		checkRead(pos,num);
+		load(pos,num);
+		System.arraycopy(cells,0,dst,dstpos,3*num);
+	}
+
+	public synchronized void writeCells ( int pos, int num, int[] src, int srcpos )
+	{
+		checkWrite(pos,num);
+		reserve(num);
+		System.arraycopy(src,srcpos,cells,0,3*num);
+		store(pos,num);
+	}
+
+	/**
+	 * Forces the content to the disk.
+	 *
+	 * @throws IOException if the file can't be written
+	 */
+	public synchronized void force() throws IOException
+	{
+		channel.force(true);
+	}
+
+	/**
+	 * Forces the content to the disk and closes the file; from now on
+	 * it can't be used.
+	 *
+	 * @throws IOException if the file can't be written
+	 */
+	public synchronized void close() throws IOException
+	{
+		force();
+		channel.close();
+	}
+
+	/* makes room in the buffers for num cells */
+	private void reserve ( int num )
+	{
+		if (cells.length < 3*num) {
+			cells = new int[3*num];
+			bytes = ByteBuffer.allocate(CELLBYTES*num);
+		}
+	}
+
+	/* reads num cells from the pos-th into cells */
+	private void load ( int pos, int num )
+	{
+		reserve(num);
+		bytes.clear();
+		bytes.limit(CELLBYTES*num);
+		try { readFully(channel,bytes,HEADER+(long)CELLBYTES*pos);
+		} catch (IOException e) {
+			throw new IllegalStateException("can't read file "+getMarsFileId()+": "+e.getMessage());
+		}
+		bytes.flip();
+		bytes.asIntBuffer().get(cells,0,3*num);
+	}
+
+	/* writes num cells from cells into the file from the pos-th on */
+	private void store ( int pos, int num )
+	{
+		bytes.clear();
+		bytes.asIntBuffer().put(cells,0,3*num);
+		bytes.limit(CELLBYTES*num);
+		try {
+			long at = HEADER+(long)CELLBYTES*pos;
+			while (bytes.hasRemaining())
+				at += channel.write(bytes,at);
+		} catch (IOException e) {
+			throw new IllegalStateException("can't write file "+getMarsFileId()+": "+e.getMessage());
+		}
+	}
+
+	private void writeHeader() throws IOException
+	{
+		ByteBuffer header = ByteBuffer.allocate(HEADER);
+		header.putInt(MAGIC);
+		header.putInt(getMarsFileOwner());
+		header.flip();
+		while (header.hasRemaining())
+			channel.write(header,header.position());
+	}
+
+	/* fills buf from the position at of the channel */
+	static void readFully ( FileChannel channel, ByteBuffer buf, long at ) throws IOException
+	{
+		while (buf.hasRemaining()) {
+			int n = channel.read(buf,at);
+			if (n < 0)
+				throw new IOException("unexpected end of file");
+			at += n;
+		}
+	}
+}
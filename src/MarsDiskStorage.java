@@ -0,0 +1,187 @@
+/**
+ *  This is a storage whose files live in a directory on disk, one
+ *  <CODE>MarsDiskFile</CODE> per file ID, named <CODE>file</CODE>
+ *  followed by the ID and <CODE>.cells</CODE>. The files found in the
+ *  directory are opened at start-up, so the warriors and what they
+ *  have written are kept from one run to the next; their content never
+ *  has to fit in the heap. The ownership checks are the ones of
+ *  <CODE>MarsStorage</CODE>.
+ *  The files are either accessed with positional reads and writes
+ *  (<CODE>MarsDiskFile</CODE>) or mapped in memory
+ *  (<CODE>MarsMappedFile</CODE>).
+ *  The writes of the DMA may go through a write-ahead journal
+ *  (<CODE>MarsJournal</CODE>), kept in the same directory and replayed
+ *  at start-up, so that a run killed in the middle of a write leaves
+ *  no file half-written.
+ *  ----------------------------------------------------------------
+ *  @author Ciro Mattia Gonano <CODE>&lt;gonano@CS.UniBO.It&gt;</CODE>
+ *  @author Jacopo Saporetti <CODE>&lt;saporet3@CS.UniBO.It&gt;</CODE>
+ *  @author Mauro Seno <CODE>&lt;mseno@CS.UniBO.It&gt;</CODE>
+ *  ________________________________________________________________
+ */
+
+import java.io.File;
+import java.io.IOException;
+
+public class MarsDiskStorage extends MarsStorage
+{
+	private File dir;
+	private boolean mapped;
+	private MarsJournal journal;
+
+	/**
+	 * Constructor: opens the files already in <CODE>dir</CODE>, whatever
+	 * their IDs.
+	 *
+	 * @param dir the directory of the files, created if it doesn't exist
+	 * @param mapped true to map the files in memory
+	 * @throws IOException if the directory or a file can't be read
+	 */
+	public MarsDiskStorage ( File dir, boolean mapped ) throws IOException
+	{
+		this(dir,mapped,0);
+	}
+
+	/**
+	 * Constructor: opens the files already in <CODE>dir</CODE>, as
+	 * above, and the journal, replaying it.
+	 *
+	 * @param dir the directory of the files, created if it doesn't exist
+	 * @param mapped true to map the files in memory
+	 * @param batch how many journal records may be forced at once, 0 for
+	 * no journal
+	 * @throws IOException if the directory, a file or the journal can't
+	 * be read
+	 */
+	public MarsDiskStorage ( File dir, boolean mapped, int batch ) throws IOException
+	{
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("can't create directory "+dir);
+		this.dir = dir;
+		this.mapped = mapped;
+		String[] names = dir.list();
+		if (names == null)
+			throw new IOException("can't read directory "+dir);
+		for (int n=0; n<names.length; n++) {
+			int i = idOf(names[n]);
+			if (i >= 0)
+				super.setMarsStorageFile(i, mapped ? (MarsFile) MarsMappedFile.open(pathOf(i),i)
+						: (MarsFile) MarsDiskFile.open(pathOf(i),i));
+		}
+		if (batch > 0)
+			journal = new MarsJournal(new File(dir,"journal"),this,batch);
+	}
+
+	/**
+	 * Returns the journal, or null if the writes aren't journaled.
+	 */
+	public MarsJournal getJournal()
+	{
+		return journal;
+	}
+
+	/**
+	 * Sets a file which ID is fileIndex. If the directory already holds
+	 * that file, the one on disk is kept; otherwise it's written on
+	 * disk with the content and owner of <CODE>file</CODE>.
+	 *
+	 * @param fileIndex the index of the new file
+	 * @param file the file to be set
+	 * @throws IllegalStateException if the file can't be written
+	 */
+	public void setMarsStorageFile ( int fileIndex, MarsFile file )
+	{
+		if (getMarsStorageFile(fileIndex) != null)
+			return;
+		File path = pathOf(fileIndex);
+		MarsCell[] content = file.getMarsFileContent();
+		int owner = file.getMarsFileOwner();
+		try {
+			super.setMarsStorageFile(fileIndex, mapped ? (MarsFile) MarsMappedFile.create(path,fileIndex,content,owner)
+					: (MarsFile) MarsDiskFile.create(path,fileIndex,content,owner));
+		} catch (IOException e) {
+			throw new IllegalStateException("can't write file "+fileIndex+": "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Removes the file with ID <CODE>fileIndex</CODE>, closing it and
+	 * deleting it from the directory.
+	 *
+	 * @param fileIndex the index of the file to be removed
+	 * @return the file removed, or null if there was no such file
+	 * @throws IllegalStateException if the file can't be deleted
+	 */
+	MarsFile removeMarsStorageFile ( int fileIndex )
+	{
+		MarsFile file = super.removeMarsStorageFile(fileIndex);
+		if (file == null)
+			return file;
+		try {
+			if (mapped)
+				((MarsMappedFile) file).close();
+			else
+				((MarsDiskFile) file).close();
+		} catch (IOException e) {
+			throw new IllegalStateException("can't close file "+fileIndex+": "+e.getMessage());
+		}
+		if (!pathOf(fileIndex).delete())
+			throw new IllegalStateException("can't delete file "+fileIndex);
+		return file;
+	}
+
+	/**
+	 * Forces every file to the disk.
+	 *
+	 * @throws IOException if a file can't be written
+	 */
+	public void force() throws IOException
+	{
+		for (int i=0; i<getMarsStorageLimit(); i++)
+			if (getMarsStorageFile(i) == null)
+				continue;
+			else if (mapped)
+				((MarsMappedFile) getMarsStorageFile(i)).force();
+			else
+				((MarsDiskFile) getMarsStorageFile(i)).force();
+	}
+
+	/**
+	 * Forces every file to the disk and closes it, and the journal.
+	 *
+	 * @throws IOException if a file can't be written
+	 */
+	public void close() throws IOException
+	{
+		if (journal != null)
+			journal.close();
+		for (int i=0; i<getMarsStorageLimit(); i++)
+			if (getMarsStorageFile(i) == null)
+				continue;
+			else if (mapped)
+				((MarsMappedFile) getMarsStorageFile(i)).close();
+			else
+				((MarsDiskFile) getMarsStorageFile(i)).close();
+	}
+
+	private File pathOf ( int fileIndex )
+	{
+		return new File(dir,"file"+fileIndex+".cells");
+	}
+
+	/* the ID of the file named name, or -1 if it isn't a file of ours */
+	private static int idOf ( String name )
+	{
+		if ( !name.startsWith("file") || !name.endsWith(".cells") )
+			return -1;
+		String id = name.substring(4,name.length()-6);
+		if ( (id.length()==0) || (id.length()>9) )
+			return -1;
+		for (int i=0; i<id.length(); i++)
+			if (!Character.isDigit(id.charAt(i)))
+				return -1;
+		if ( (id.length()>1) && (id.charAt(0)=='0') )
+			return -1;
+		return Integer.parseInt(id);
+	}
+}
@@ -1,5 +1,9 @@
 /**
  *  This is the implementation of a Mars File.
+ *  The cells are packed in arrays of ints, three per cell like in
+ *  the memory, so that the DMA can move them with block copies. Each
+ *  array is an extent of <CODE>EXTENT</CODE> cells: a file grows by
+ *  adding extents, without copying the cells it already has.
  *  ---------------------------------------------
  *  @author Ciro Mattia Gonano <CODE>&lt;gonano@CS.UniBO.It&gt;</CODE>
  *  @author Jacopo Saporetti <CODE>&lt;saporet3@CS.UniBO.It&gt;</CODE>
@@ -9,7 +13,13 @@
 
 public class MarsFile
 {
-	private MarsCell[] content;
+	/** Number of cells of an extent */
+	public static final int EXTENT = 64;
+	/** Largest size of a file, in cells */
+	public static final int MAXSIZE = 1<<20;
+
+	private int[][] extents;	/* opcode, A and B of every cell */
+	private int size;
 	private int ID;
 	private int ownerID;
 	private int howmanyopen;
@@ -24,10 +34,8 @@ public class MarsFile
 	 */
 	public MarsFile ( int myID, int myownerID )
 	{
-		MarsCell[] mycontent = new MarsCell[1];
-		mycontent[0] = new MarsCell();
 		ID = myID;
-		content = mycontent;
+		pack(new MarsCell[] { new MarsCell() });
 		ownerID = myownerID;
 		howmanyopen=0;
 		open = false;
@@ -46,7 +54,7 @@ public class MarsFile
 		ownerID = myownerID;
 		howmanyopen=0;
 		open = false;
-		content=newContent;
+		pack(newContent);
 	}
 
 	/**
@@ -60,7 +68,7 @@ public class MarsFile
 		ID = myID;
 		howmanyopen=0;
 		open = false;
-		content=newContent;
+		pack(newContent);
 		/*  Vedi commento primo costruttore */
 	}
 
@@ -88,7 +96,7 @@ public class MarsFile
 	 */
 	public MarsCell[] getMarsFileContent()
 	{
-		return content;
+		return getMarsFileCells(0,getMarsFileSize());
 	}
 
 	/**
@@ -97,7 +105,7 @@ public class MarsFile
 	 */
 	public int getMarsFileSize()
 	{
-		return content.length;
+		return size;
 	}
 
 	/**
@@ -133,7 +141,37 @@ public class MarsFile
 	 */
 	public void setMarsFileContent ( MarsCell[] newcontent )
 	{
-		content = newcontent;
+		pack(newcontent);
+	}
+
+	/**
+	 * Grows the file to <CODE>newsize</CODE> cells, adding empty cells
+	 * at its end; a file is never shrunk.
+	 * @param newsize the new file's size
+	 * @throws SecurityException if the file would be larger than
+	 * <CODE>MAXSIZE</CODE>
+	 */
+	public void extendMarsFile ( int newsize )
+	{
+		if (newsize <= size)
+			return;
+		if (newsize > MAXSIZE)
+			throw new SecurityException("write: file too large.");
+		grow(newsize);
+	}
+
+	/* adds the extents holding the cells up to newsize */
+	private void grow ( int newsize )
+	{
+		int needed = (newsize+EXTENT-1)/EXTENT;
+		if (needed > extents.length) {
+			int[][] bigger = new int[Math.max(needed,2*extents.length)][];
+			System.arraycopy(extents,0,bigger,0,extents.length);
+			extents = bigger;
+		}
+		for (int e=(size+EXTENT-1)/EXTENT; e<needed; e++)
+			extents[e] = new int[3*EXTENT];
+		size = newsize;
 	}
 
 	/**
@@ -146,10 +184,10 @@ public class MarsFile
 	 */
 	public boolean setMarsFileIsOpen ( boolean isopen, boolean mode )
 	{
-		if ( isopen && (canwrite||mode) )	// multiple readers or only a writer allowed
+		if ( open && (canwrite||mode) )	// multiple readers or only a writer allowed
 			return false;
 		else {
-			isopen=true;
+			open=true;
 			canwrite = mode;
 			howmanyopen++;
 		}
@@ -166,7 +204,7 @@ public class MarsFile
 	 */
 	public boolean setMarsFileIsClosed ()
 	{
-		if ((howmanyopen--)==0)
+		if ((--howmanyopen)==0)
 			open=false;
 		return !open;
 	}
@@ -180,20 +218,129 @@ public class MarsFile
 	 */
 	public MarsCell[] getMarsFileCells ( int pos, int num )
 	{
-		if ( (pos>=content.length) || ((pos+num)>content.length) )
-			throw new SecurityException("read: out of file limits.");
-		else
-		{
-			MarsCell[] retarray = new MarsCell[num];
-			for ( int i=0; i<num; i++)
-				retarray[i] = (MarsCell) (content[pos+i]);
-			return retarray;
+		checkRead(pos,num);
+		MarsCell[] retarray = new MarsCell[num];
+		for ( int i=0; i<num; i++ ) {
+			int[] extent = extents[(pos+i)/EXTENT];
+			int j = 3*((pos+i)%EXTENT);
+			retarray[i] = new MarsCell(extent[j],extent[j+1],extent[j+2]);
 		}
+		return retarray;
+	}
+
+	/**
+	 * Copies <CODE>num</CODE> Cells of the file, beginning from the
+	 * <CODE>pos</CODE>th, straight into the memory from
+	 * <CODE>address</CODE> on, without building a <CODE>MarsCell</CODE>
+	 * for each of them.
+	 * @param pos the offset in the file.
+	 * @param num number of Cells to be read.
+	 * @param memory where to copy the cells.
+	 * @param address the address of the first cell in memory.
+	 */
+	public void transferTo ( int pos, int num, PrimitiveMemory memory, int address )
+	{
+		checkRead(pos,num);
+		for ( int done=0; done<num; ) {
+			int off = (pos+done)%EXTENT;
+			int n = Math.min(EXTENT-off,num-done);
+			memory.writeCells(address+done,extents[(pos+done)/EXTENT],3*off,n);
+			done += n;
+		}
+	}
+
+	/**
+	 * Copies <CODE>num</CODE> Cells of the memory, from
+	 * <CODE>address</CODE> on, straight into the file beginning from
+	 * the <CODE>pos</CODE>th.
+	 * @param pos the offset in the file.
+	 * @param num number of Cells to be written.
+	 * @param memory where to copy the cells from.
+	 * @param address the address of the first cell in memory.
+	 */
+	public void transferFrom ( int pos, int num, PrimitiveMemory memory, int address )
+	{
+		checkWrite(pos,num);
+		for ( int done=0; done<num; ) {
+			int off = (pos+done)%EXTENT;
+			int n = Math.min(EXTENT-off,num-done);
+			memory.readCells(address+done,extents[(pos+done)/EXTENT],3*off,n);
+			done += n;
+		}
+	}
+
+	/**
+	 * Copies <CODE>num</CODE> Cells of the file, beginning from the
+	 * <CODE>pos</CODE>th, in <CODE>dst</CODE> from the int
+	 * <CODE>dstpos</CODE> on, three ints per cell.
+	 * @param pos the offset in the file.
+	 * @param num number of Cells to be read.
+	 * @param dst where to copy the cells.
+	 * @param dstpos the position of the first int in <CODE>dst</CODE>.
+	 */
+	public void readCells ( int pos, int num, int[] dst, int dstpos )
+	{
+		checkRead(pos,num);
+		for ( int done=0; done<num; ) {
+			int off = (pos+done)%EXTENT;
+			int n = Math.min(EXTENT-off,num-done);
+			System.arraycopy(extents[(pos+done)/EXTENT],3*off,dst,dstpos+3*done,3*n);
+			done += n;
+		}
+	}
+
+	/**
+	 * Overwrites <CODE>num</CODE> Cells of the file, beginning from the
+	 * <CODE>pos</CODE>th, with the cells packed in <CODE>src</CODE> as
+	 * in <CODE>readCells()</CODE>.
+	 * @param pos the offset in the file.
+	 * @param num number of Cells to be written.
+	 * @param src where to copy the cells from.
+	 * @param srcpos the position of the first int in <CODE>src</CODE>.
+	 */
+	public void writeCells ( int pos, int num, int[] src, int srcpos )
+	{
+		checkWrite(pos,num);
+		for ( int done=0; done<num; ) {
+			int off = (pos+done)%EXTENT;
+			int n = Math.min(EXTENT-off,num-done);
+			System.arraycopy(src,srcpos+3*done,extents[(pos+done)/EXTENT],3*off,3*n);
+			done += n;
+		}
+	}
+
+	protected void checkRead ( int pos, int num )
+	{
+		if ( (pos<0) || (num<0) || (pos>=getMarsFileSize()) || (num>getMarsFileSize()-pos) )
+			throw new SecurityException("read: out of file limits.");
+	}
+
+	/* a write may begin anywhere up to the end of the file, which grows
+	 * to hold it */
+	protected void checkWrite ( int pos, int num )
+	{
+		if ( (pos<0) || (num<0) || (pos>getMarsFileSize()) )
+			throw new SecurityException("write: out of file size.");
+		extendMarsFile(pos+num);
+	}
+
+	/* packs an array of cells in new extents, replacing the content */
+	private void pack ( MarsCell[] cells )
+	{
+		extents = new int[Math.max(1,(cells.length+EXTENT-1)/EXTENT)][];
+		size = 0;
+		grow(cells.length);
+		for ( int i=0; i<cells.length; i++ )
+			cellCopy(i,cells[i]);
 	}
 
 	private void cellCopy ( int pos, MarsCell towrite )
 	{
-		content[pos] = towrite;
+		int[] extent = extents[pos/EXTENT];
+		int j = 3*(pos%EXTENT);
+		extent[j] = towrite.getOpcode();
+		extent[j+1] = towrite.getOperandA();
+		extent[j+2] = towrite.getOperandB();
 	}
 
 	/** Sets the content of a Cell in the file, at position <CODE>pos</CODE>.
@@ -202,7 +349,7 @@ public class MarsFile
 	 */
 	public void setMarsFileCell ( int pos, MarsCell towrite )
 	{
-		if (pos>=content.length)
+		if (pos>=getMarsFileSize())
 			throw new SecurityException("write: out of file size.");
 		else
 			cellCopy(pos,towrite);
@@ -217,11 +364,9 @@ public class MarsFile
 	 */
 	public void setMarsFileCells ( int pos, int num, MarsCell[] towrite )
 	{
-		if ( (pos>=content.length) || ((pos+num)>content.length) )
-			throw new SecurityException("write: out of file size.");
-		else
-			for ( int i=0; i<num; i++ )
-				cellCopy(pos+i,towrite[i]);
+		checkWrite(pos,num);
+		for ( int i=0; i<num; i++ )
+			cellCopy(pos+i,towrite[i]);
 	}
 }
 
@@ -0,0 +1,158 @@
+/**
+ *  This class is the interrupt controller standing between the devices
+ *  and the interrupt handler. A device doesn't call the handler: it
+ *  posts the interrupt in a lock-free ring, which any number of threads
+ *  may fill, and the interrupts are delivered later by a single thread
+ *  at a time with <CODE>drain()</CODE>: the processor at its
+ *  instruction boundaries and the timer at the end of each tick window.
+ *  So the DMA never takes the handler's lock while the processor is in
+ *  the middle of a tick.
+ *  The DMA completions found one after another in the ring are
+ *  delivered as a single trap, with the (pid, tid) of each of them.
+ *  ----------------------------------------------------------------
+ *  @author Ciro Mattia Gonano <CODE>&lt;gonano@CS.UniBO.It&gt;</CODE>
+ *  @author Jacopo Saporetti <CODE>&lt;saporet3@CS.UniBO.It&gt;</CODE>
+ *  @author Mauro Seno <CODE>&lt;mseno@CS.UniBO.It&gt;</CODE>
+ *  ________________________________________________________________
+ */
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+public class MarsInterruptController implements InterruptHandler
+{
+	private MarsInterruptHandler handler;
+	private int mask;
+	private int[] irqs;
+	private int[] data1s;
+	private int[] data2s;
+	/* sequence number of each slot: it's equal to the position the
+	 * slot will be posted at when free, and to that position+1 when
+	 * the interrupt has been posted */
+	private AtomicIntegerArray sequence;
+	private AtomicInteger tail;	/* next position to post at */
+	private int head;		/* next position to deliver, drainer only */
+	private int[] pids;		/* the DMA completions of a batch */
+	private int[] tids;
+	private long delivered;
+	private long traps;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param handler the handler the interrupts are delivered to
+	 * @param capacity the maximum number of pending interrupts, rounded
+	 * up to a power of two
+	 */
+	public MarsInterruptController ( MarsInterruptHandler handler, int capacity )
+	{
+		int slots = 1;
+		while (slots < capacity)
+			slots <<= 1;
+		this.handler = handler;
+		mask = slots-1;
+		irqs = new int[slots];
+		data1s = new int[slots];
+		data2s = new int[slots];
+		sequence = new AtomicIntegerArray(slots);
+		for (int i=0; i<slots; i++)
+			sequence.set(i,i);
+		tail = new AtomicInteger(0);
+		head = 0;
+		pids = new int[slots];
+		tids = new int[slots];
+	}
+
+	/**
+	 * Posts an interrupt, to be delivered by the next <CODE>drain()</CODE>.
+	 * It may be called by any thread, and never blocks.
+	 *
+	 * @param irqn Interrupt Request Number
+	 * @param data1 auxiliary parameter 1
+	 * @param data2 auxiliary parameter 2
+	 * @throws IllegalStateException if the ring is full
+	 */
+	public void interrupt ( int irqn, int data1, int data2 )
+	{
+		while (true) {
+			int pos = tail.get();
+			int slot = pos & mask;
+			int dif = sequence.get(slot)-pos;
+			if (dif < 0)
+				throw new IllegalStateException("interrupt queue full");
+			/* dif > 0: another thread has just taken the slot */
+			if (dif == 0 && tail.compareAndSet(pos,pos+1)) {
+				irqs[slot] = irqn;
+				data1s[slot] = data1;
+				data2s[slot] = data2;
+				/* publishes the interrupt to the drainer */
+				sequence.set(slot,pos+1);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Tells whether an interrupt is waiting to be delivered.
+	 */
+	public boolean isPending()
+	{
+		return sequence.get(head & mask) == head+1;
+	}
+
+	/**
+	 * Delivers the pending interrupts to the handler, in the order they
+	 * were posted, until the ring is empty; the handler may post new
+	 * ones meanwhile. Only one thread at a time may drain.
+	 *
+	 * @return the number of traps taken by the handler
+	 */
+	public int drain()
+	{
+		int n = 0;
+		while (isPending()) {
+			int slot = head & mask;
+			if (irqs[slot] != 3) {
+				int irqn = irqs[slot];
+				int data1 = data1s[slot];
+				int data2 = data2s[slot];
+				release();
+				handler.interrupt(irqn,data1,data2);
+			}
+			else {
+				int count = 0;
+				do {
+					pids[count] = data1s[head & mask];
+					tids[count] = data2s[head & mask];
+					count++;
+					release();
+				} while (isPending() && irqs[head & mask] == 3);
+				if (count == 1)
+					handler.interrupt(3,pids[0],tids[0]);
+				else
+					handler.dmaTrap(pids,tids,count);
+				delivered += count-1;
+			}
+			delivered++;
+			n++;
+		}
+		traps += n;
+		return n;
+	}
+
+	/**
+	 * Prints how many interrupts have been delivered, and in how many
+	 * traps.
+	 */
+	public void print()
+	{
+		System.out.println("Interrupts: "+delivered+" delivered in "+traps+" traps");
+	}
+
+	/* frees the slot at the head for the producers */
+	private void release()
+	{
+		sequence.set(head & mask,head+mask+1);
+		head++;
+	}
+}
@@ -26,7 +26,7 @@ public class MarsInterruptHandler implements InterruptHandler
 		syscall=asys;
 		sched=scheduler;
 		timer=atimer;
-		constant=new MarsSystemConstant();
+		constant=acpu.constants;	// the ones of the battle, with its core size
 	}
 
 	/**
@@ -149,7 +149,7 @@ public class MarsInterruptHandler implements InterruptHandler
 					System.out.println(" ==> thread "+oldTID+" succesfully kill'd");
 					if (!sched.runNextThread()) {
 						sched.contextSwitch();
-						timer.setTimeout(constant.getQuantum(),(InterruptHandler)this);
+						armQuantum();
 					}
 					else {
 						int newTID = sched.getTID();
@@ -161,19 +161,18 @@ public class MarsInterruptHandler implements InterruptHandler
 			case 3:
 				{	/* OPEN - opens a file 
 					 * data2 is the file index
-					 * mode is in register 32
+					 * mode is in register 32: 0 read, 1 write, 2 append
 					 */
 					int fileIndex = data2;
 					int mode = processor.getRegister(31);
 					int pid = sched.getPID();
 					int tid = sched.getTID();
-					boolean truemode = ( mode==0 ? false : true );
 					System.out.println("OPEN FILE STORED IN STORAGE");
 					System.out.println("  - file index in storage: " + fileIndex );
 					System.out.println("  - modality: " + mode );
 					System.out.println("  - pid: " + pid );
 					System.out.println("  - tid: " + tid );
-					return syscall.open(fileIndex,truemode,pid,tid);
+					return syscall.open(fileIndex,mode,pid,tid);
 				}
 			case 4:
 				{	/* READ - reads "size" cell from the file "fd",
@@ -199,7 +198,7 @@ public class MarsInterruptHandler implements InterruptHandler
 						sched.killCurrentThread();
 						if (!sched.runNextThread()) {
 							sched.contextSwitch();
-							timer.setTimeout(constant.getQuantum(),(InterruptHandler)this);
+							armQuantum();
 						}
 					}
 					else if (ret==0) { // file in use, please wait... yield!
@@ -209,7 +208,7 @@ public class MarsInterruptHandler implements InterruptHandler
 					sched.holdCurrentThread();
 					if (!sched.runNextThread()) {
 						sched.contextSwitch();
-						timer.setTimeout(constant.getQuantum(),(InterruptHandler)this);
+						armQuantum();
 					}
 					timer.restartTimerUser(processor.getMarsProcessorTimerID());
 					break;
@@ -238,13 +237,13 @@ public class MarsInterruptHandler implements InterruptHandler
 						sched.killCurrentThread();
 						if (!sched.runNextThread()) {
 							sched.contextSwitch();
-							timer.setTimeout(constant.getQuantum(),(InterruptHandler)this);
+							armQuantum();
 						}
 					}
 					sched.holdCurrentThread();
 					if (!sched.runNextThread()) {
 						sched.contextSwitch();
-						timer.setTimeout(constant.getQuantum(),(InterruptHandler)this);
+						armQuantum();
 					}
 					timer.restartTimerUser(processor.getMarsProcessorTimerID());
 					break;
@@ -291,6 +290,27 @@ public class MarsInterruptHandler implements InterruptHandler
 						case 7: /* WarriorsNumber */
 							return constant.getWarriorsNumber();
 					}
+					break;
+				}
+			case 8:
+				{	/* CREATE - creates an empty file of the process */
+					int pid = sched.getPID();
+					System.out.println(" .CREATE.");
+					System.out.println("  - pid: " + pid);
+					int fileIndex = syscall.create(pid);
+					System.out.println("  - file index in storage: " + fileIndex);
+					return fileIndex;
+				}
+			case 9:
+				{	/* REMOVE - removes a file of the process
+					 * data2 is the file index
+					 */
+					int fileIndex = data2;
+					int pid = sched.getPID();
+					System.out.println(" .REMOVE.");
+					System.out.println("  - file index in storage: " + fileIndex);
+					System.out.println("  - pid: " + pid);
+					return syscall.remove(fileIndex,pid);
 				}
 		}
 		return 0;
@@ -300,12 +320,28 @@ public class MarsInterruptHandler implements InterruptHandler
 	private void timeout ( int data1, int data2 )
 	{
 		timer.stopTimer();
-		sched.ageCurrentThread();
-		sched.contextSwitch();
-		timer.setTimeout(constant.getQuantum(),(InterruptHandler)this);
+		/* an idle CPU has no thread to age, nor a quantum to count: it
+		 * waits for dmaTrap() to awake a thread */
+		if (!processor.isIdle()) {
+			sched.ageCurrentThread();
+			sched.contextSwitch();
+		}
+		else if (!dma.isPending())	// nobody will ever be awakened: let the battle reach a tie
+			sched.contextSwitch();
+		armQuantum();
 		timer.restartTimer();
 	}
 
+	/* sets a new quantum for the thread chosen by a context switch, or
+	 * none if the CPU is idle waiting for a DMA completion */
+	private void armQuantum()
+	{
+		if (processor.isIdle() && dma.isPending())
+			timer.cancelTimeout();
+		else
+			timer.setTimeout(constant.getQuantum(),(InterruptHandler)this);
+	}
+
 	/* data1 is the given opcode */
 	private void invOpcode ( int data1 )
 	{
@@ -313,11 +349,30 @@ public class MarsInterruptHandler implements InterruptHandler
 		sched.killCurrentThread();
 		if (!sched.runNextThread()) {
 			sched.contextSwitch();
-			timer.setTimeout(constant.getQuantum(),(InterruptHandler)this);
+			armQuantum();
 		}
 		timer.restartTimer();
 	}
 
+	/**
+	 * Handles, in a single trap, a batch of DMA completions coalesced by
+	 * the interrupt controller: every awakened thread is restarted as
+	 * if its own interrupt 3 had been raised, in order.
+	 *
+	 * @param pids the pid of each completion
+	 * @param tids the tid of each completion
+	 * @param count the number of completions
+	 */
+	public synchronized void dmaTrap ( int[] pids, int[] tids, int count )
+	{
+		System.out.println("==============================");
+		System.out.println(" <<<<<<<< INTERRUPT >>>>>>>>> ");
+		System.out.println("       IRQ #3 -> DMA TRAP x"+count);
+		System.out.println("==============================");
+		for (int i=0; i<count; i++)
+			this.dmaTrap(pids[i],tids[i]);
+	}
+
 	private void dmaTrap ( int data1, int data2 )
 	{
 		timer.stopTimer();
@@ -325,7 +380,12 @@ public class MarsInterruptHandler implements InterruptHandler
 		if ((res=sched.restartThread(data1,data2))<0)
 			throw new SecurityException("dmaTrap: something went wrong!!!");
 		int curPID = sched.getPID();
-		if ( (curPID==data1) && (sched.testPriority(res)) ) {	// awakened thread has higher priority!
+		if (processor.isIdle()) {	// nobody was running: the awakened thread runs at once
+			sched.setCurProc(data1);
+			sched.runNextThread();
+			timer.setTimeout(constant.getQuantum(),(InterruptHandler)this);
+		}
+		else if ( (curPID==data1) && (sched.testPriority(res)) ) {	// awakened thread has higher priority!
 			sched.swapOutCurrentThread();
 			sched.runNextThread();	// runs the awakened thread
 		}
@@ -0,0 +1,392 @@
+/**
+ *  This class is the write-ahead journal of a disk storage. The chunks
+ *  the DMA moves for a write syscall are staged here instead of going
+ *  to the file; when the syscall's request completes they are committed
+ *  as a single record, appended to the journal. Several records are
+ *  forced to the disk together by <CODE>sync()</CODE>, and only then
+ *  they are applied to the files and the completions of their requests
+ *  are raised: a write is never seen, by the warriors or on disk, before
+ *  its record is safe.
+ *  At start-up the complete records left by a run which didn't end are
+ *  applied again; the journal is emptied whenever the files are known
+ *  to be on disk.
+ *  A record is a magic number, the length of its payload, the payload
+ *  (file, pid, number of chunks and then offset, size and cells of each
+ *  chunk) and its CRC-32, all as big-endian ints.
+ *  ----------------------------------------------------------------
+ *  @author Ciro Mattia Gonano <CODE>&lt;gonano@CS.UniBO.It&gt;</CODE>
+ *  @author Jacopo Saporetti <CODE>&lt;saporet3@CS.UniBO.It&gt;</CODE>
+ *  @author Mauro Seno <CODE>&lt;mseno@CS.UniBO.It&gt;</CODE>
+ *  ________________________________________________________________
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+public class MarsJournal
+{
+	/** "MJRN" */
+	public static final int MAGIC = 0x4D4A524E;
+	/** Journal size over which the files are forced and it is emptied */
+	public static final long LIMIT = 1<<20;
+
+	private MarsDiskStorage storage;
+	private FileChannel channel;
+	private int batch;
+	/* chunks moved but not committed yet, and committed but not
+	 * applied yet: file, pid, offset, size and the cells of each one */
+	private int[] staged;
+	private int nstaged;
+	private int[] committed;
+	private int ncommitted;
+	private int records;		/* records committed since the last sync */
+	private ByteBuffer out;		/* the same records, as in the journal */
+	private int[] pids;		/* the completions to raise at the sync */
+	private int[] tids;
+	private int[] arrivals;		/* the tick each of their requests was made */
+	private int ncompletions;
+	private CRC32 crc;
+	private long syncs;
+	private long total;
+
+	/**
+	 * Opens the journal <CODE>path</CODE>, creating it if it doesn't
+	 * exist, and applies to the files of the storage the records found
+	 * in it.
+	 *
+	 * @param path the journal on disk
+	 * @param storage the storage whose writes are journaled
+	 * @param batch how many records may be committed before they're
+	 * forced to disk
+	 * @throws IOException if the journal can't be read or written
+	 */
+	public MarsJournal ( File path, MarsDiskStorage storage, int batch ) throws IOException
+	{
+		this.storage = storage;
+		this.batch = batch;
+		channel = new RandomAccessFile(path,"rw").getChannel();
+		staged = new int[64];
+		committed = new int[64];
+		out = ByteBuffer.allocate(256);
+		pids = new int[16];
+		tids = new int[16];
+		arrivals = new int[16];
+		crc = new CRC32();
+		replay();
+	}
+
+	/**
+	 * Copies <CODE>size</CODE> cells of the memory, from
+	 * <CODE>address</CODE> on, to be written in the file
+	 * <CODE>fileID</CODE> from <CODE>offset</CODE> on when the write is
+	 * committed and synced.
+	 *
+	 * @param pid the process id.
+	 * @param fileID the file id where to write cells.
+	 * @param offset where to begin to write cells.
+	 * @param size number of cell to be written.
+	 * @param memory where to copy the cells from.
+	 * @param address the address of the first cell in memory.
+	 * @throws SecurityException if the process doesn't own the file or
+	 * the cells are out of the file
+	 */
+	public synchronized void stage ( int pid, int fileID, int offset, int size, PrimitiveMemory memory, int address )
+	{
+		storage.getOwnedFile(pid,fileID,"write");
+		/* the file may grow with the chunks staged before */
+		if ( (offset<0) || ((offset+size)>MarsFile.MAXSIZE) )
+			throw new SecurityException("write: out of file size.");
+		staged = reserve(staged,nstaged+4+3*size);
+		staged[nstaged] = fileID;
+		staged[nstaged+1] = pid;
+		staged[nstaged+2] = offset;
+		staged[nstaged+3] = size;
+		memory.readCells(address,staged,nstaged+4,size);
+		nstaged += 4+3*size;
+	}
+
+	/**
+	 * Commits the chunks staged for a file, as the write request moving
+	 * them has completed: they're appended as a record, to be forced to
+	 * disk by the next <CODE>sync()</CODE>. As a file has a single
+	 * writer, they are all of the same syscall.
+	 *
+	 * @param fileID the file written
+	 * @param pid the process of the request
+	 * @param tid the thread of the request
+	 * @param arrival the tick the request was made
+	 * @param complete true to raise the completion of the request at the
+	 * sync
+	 */
+	public synchronized void commit ( int fileID, int pid, int tid, int arrival, boolean complete )
+	{
+		int start = ncommitted;
+		int chunks = 0;
+		int kept = 0;
+		for (int i=0; i<nstaged; ) {
+			int len = 4+3*staged[i+3];
+			if (staged[i] == fileID) {
+				committed = reserve(committed,ncommitted+len);
+				System.arraycopy(staged,i,committed,ncommitted,len);
+				ncommitted += len;
+				chunks++;
+			}
+			else {
+				System.arraycopy(staged,i,staged,kept,len);
+				kept += len;
+			}
+			i += len;
+		}
+		nstaged = kept;
+		if (chunks > 0)
+			encode(fileID,pid,chunks,start);
+		if (complete) {
+			if (ncompletions == pids.length) {
+				pids = reserve(pids,2*ncompletions);
+				tids = reserve(tids,2*ncompletions);
+				arrivals = reserve(arrivals,2*ncompletions);
+			}
+			pids[ncompletions] = pid;
+			tids[ncompletions] = tid;
+			arrivals[ncompletions] = arrival;
+			ncompletions++;
+		}
+	}
+
+	/**
+	 * Tells whether the committed records should be synced: when there
+	 * are <CODE>batch</CODE> of them, or when no more writes are coming
+	 * to share their force.
+	 *
+	 * @param writing true if there are write requests pending
+	 */
+	public synchronized boolean isDue ( boolean writing )
+	{
+		return ( records > 0 || ncompletions > 0 ) && ( !writing || records >= batch );
+	}
+
+	/**
+	 * Tells whether some chunks of the file <CODE>fileID</CODE> are
+	 * staged or committed, and not applied yet.
+	 *
+	 * @param fileID the file id
+	 */
+	public synchronized boolean hasRecords ( int fileID )
+	{
+		for (int i=0; i<nstaged; i+=4+3*staged[i+3])
+			if (staged[i] == fileID)
+				return true;
+		for (int i=0; i<ncommitted; i+=4+3*committed[i+3])
+			if (committed[i] == fileID)
+				return true;
+		return false;
+	}
+
+	/**
+	 * Tells whether some completions are waiting for the next sync.
+	 */
+	public synchronized boolean isPending()
+	{
+		return ncompletions > 0;
+	}
+
+	/**
+	 * Appends the committed records to the journal and forces it with a
+	 * single call, then applies them to the files, through the cache if
+	 * there is one, and raises the completions of their requests,
+	 * recording how long they have waited.
+	 *
+	 * @param cache the block cache of the DMA, or null
+	 * @param handler the handler of the completion interrupts, or null
+	 * @param stats where to record the waits of the requests
+	 * @param now the current tick
+	 * @return the number of completions raised
+	 * @throws IllegalStateException if the journal can't be written
+	 */
+	public synchronized int sync ( MarsBlockCache cache, InterruptHandler handler, MarsDMAStats stats, int now )
+	{
+		if (records > 0) {
+			out.flip();
+			try {
+				long at = channel.size();
+				while (out.hasRemaining())
+					at += channel.write(out,at);
+				channel.force(false);
+			} catch (IOException e) {
+				throw new IllegalStateException("can't write journal: "+e.getMessage());
+			}
+			out.clear();
+			syncs++;
+			total += records;
+			records = 0;
+		}
+		for (int i=0; i<ncommitted; ) {
+			int file = committed[i];
+			int pid = committed[i+1];
+			int offset = committed[i+2];
+			int size = committed[i+3];
+			if (cache != null)
+				cache.write(pid,file,offset,size,committed,i+4);
+			else
+				storage.getMarsStorageFile(file).writeCells(offset,size,committed,i+4);
+			i += 4+3*size;
+		}
+		ncommitted = 0;
+		int n = ncompletions;
+		if (handler != null)
+			for (int i=0; i<n; i++) {
+				stats.record(now+1-arrivals[i]);
+				handler.interrupt(3,pids[i],tids[i]);
+			}
+		ncompletions = 0;
+		if (channelSize() > LIMIT)
+			checkpoint(cache);
+		return n;
+	}
+
+	/**
+	 * Writes back the cache, forces the files to disk and empties the
+	 * journal, whose records are no more needed.
+	 *
+	 * @param cache the block cache of the DMA, or null
+	 * @throws IllegalStateException if the files or the journal can't
+	 * be written
+	 */
+	public synchronized void checkpoint ( MarsBlockCache cache )
+	{
+		if (cache != null)
+			cache.flush();
+		try {
+			storage.force();
+			channel.truncate(0);
+			channel.force(false);
+		} catch (IOException e) {
+			throw new IllegalStateException("can't write journal: "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Prints how many records have been written, and in how many forces.
+	 */
+	public synchronized void print()
+	{
+		System.out.println("Journal: "+total+" records in "+syncs+" syncs");
+	}
+
+	/**
+	 * Closes the journal; from now on it can't be used.
+	 *
+	 * @throws IOException if the journal can't be closed
+	 */
+	public synchronized void close() throws IOException
+	{
+		channel.close();
+	}
+
+	/* appends to out the record of the chunks from committed[start] on */
+	private void encode ( int fileID, int pid, int chunks, int start )
+	{
+		int len = 4*(3+ncommitted-start-2*chunks);
+		if (out.remaining() < len+12) {
+			ByteBuffer bigger = ByteBuffer.allocate(2*(out.position()+len+12));
+			out.flip();
+			bigger.put(out);
+			out = bigger;
+		}
+		out.putInt(MAGIC);
+		out.putInt(len);
+		int from = out.position();
+		out.putInt(fileID);
+		out.putInt(pid);
+		out.putInt(chunks);
+		for (int i=start; i<ncommitted; ) {
+			int size = committed[i+3];
+			out.putInt(committed[i+2]);
+			out.putInt(size);
+			out.asIntBuffer().put(committed,i+4,3*size);
+			out.position(out.position()+12*size);
+			i += 4+3*size;
+		}
+		crc.reset();
+		crc.update(out.array(),from,len);
+		out.putInt((int)crc.getValue());
+		records++;
+	}
+
+	/* applies to the files the complete records of the journal, then
+	 * forces them and empties the journal */
+	private void replay() throws IOException
+	{
+		long size = channel.size();
+		long at = 0;
+		int n = 0;
+		ByteBuffer head = ByteBuffer.allocate(8);
+		while (at+8 <= size) {
+			head.clear();
+			MarsDiskFile.readFully(channel,head,at);
+			head.flip();
+			int len = head.getInt(4);
+			if (head.getInt(0) != MAGIC || len < 12 || at+8+len+4 > size)
+				break;
+			ByteBuffer rec = ByteBuffer.allocate(len+4);
+			MarsDiskFile.readFully(channel,rec,at+8);
+			crc.reset();
+			crc.update(rec.array(),0,len);
+			if ((int)crc.getValue() != rec.getInt(len))
+				break;
+			apply(rec);
+			at += 8+len+4;
+			n++;
+		}
+		if (size > 0) {
+			System.out.println("Journal: replayed "+n+" records");
+			storage.force();
+			channel.truncate(0);
+			channel.force(false);
+		}
+	}
+
+	/* writes the chunks of a record in their file */
+	private void apply ( ByteBuffer rec )
+	{
+		int file = rec.getInt(0);
+		int chunks = rec.getInt(8);
+		int[] cells = new int[0];
+		try {
+			MarsFile f = storage.getMarsStorageFile(file);
+			for (int i=0, at=12; i<chunks; i++) {
+				int offset = rec.getInt(at);
+				int size = rec.getInt(at+4);
+				cells = reserve(cells,3*size);
+				for (int j=0; j<3*size; j++)
+					cells[j] = rec.getInt(at+8+4*j);
+				at += 8+12*size;
+				f.writeCells(offset,size,cells,0);
+			}
+		} catch (RuntimeException e) {
+			System.out.println("Journal: can't apply a record to file "+file+": "+e);
+		}
+	}
+
+	private long channelSize()
+	{
+		try { return channel.size();
+		} catch (IOException e) {
+			throw new IllegalStateException("can't read journal: "+e.getMessage());
+		}
+	}
+
+	/* returns an array at least len long, with the content of a */
+	private static int[] reserve ( int[] a, int len )
+	{
+		if (a.length >= len)
+			return a;
+		int[] b = new int[Math.max(len,2*a.length)];
+		System.arraycopy(a,0,b,0,a.length);
+		return b;
+	}
+}
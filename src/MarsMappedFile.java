@@ -0,0 +1,240 @@
+/**
+ *  This is a Mars File whose content is a file on disk mapped in
+ *  memory, in the same layout as a <CODE>MarsDiskFile</CODE>. The
+ *  cells are moved with bulk copies between the mapping and the core,
+ *  without a system call or an allocation per transfer, and they stay
+ *  in the page cache of the operating system instead of the heap.
+ *  ----------------------------------------------------------------
+ *  @author Ciro Mattia Gonano <CODE>&lt;gonano@CS.UniBO.It&gt;</CODE>
+ *  @author Jacopo Saporetti <CODE>&lt;saporet3@CS.UniBO.It&gt;</CODE>
+ *  @author Mauro Seno <CODE>&lt;mseno@CS.UniBO.It&gt;</CODE>
+ *  ________________________________________________________________
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class MarsMappedFile extends MarsFile
+{
+	private RandomAccessFile file;
+	private MappedByteBuffer map;
+	private IntBuffer content;	/* the cells, three ints each */
+	private int size;
+	private int[] cells;		/* the cells of the last transfer, packed */
+
+	/**
+	 * Creates the file <CODE>path</CODE> with the given content and
+	 * owner, replacing it if it exists, and maps it.
+	 *
+	 * @param path the file on disk
+	 * @param myID the id of the new file
+	 * @param content the file's content
+	 * @param myownerID the id of the owner of new file
+	 * @throws IOException if the file can't be written
+	 */
+	public static MarsMappedFile create ( File path, int myID, MarsCell[] content, int myownerID ) throws IOException
+	{
+		MarsDiskFile.create(path,myID,content,myownerID).close();
+		return open(path,myID);
+	}
+
+	/**
+	 * Maps the file <CODE>path</CODE>, written by a previous run.
+	 *
+	 * @param path the file on disk
+	 * @param myID the id of the file
+	 * @throws IOException if the file can't be read or isn't a Mars File
+	 */
+	public static MarsMappedFile open ( File path, int myID ) throws IOException
+	{
+		RandomAccessFile file = new RandomAccessFile(path,"rw");
+		long length = file.length();
+		if (length < MarsDiskFile.HEADER || (length-MarsDiskFile.HEADER) % MarsDiskFile.CELLBYTES != 0) {
+			file.close();
+			throw new IOException(path+" is not a Mars File");
+		}
+		MappedByteBuffer map = file.getChannel().map(FileChannel.MapMode.READ_WRITE,0,length);
+		if (map.getInt(0) != MarsDiskFile.MAGIC) {
+			file.close();
+			throw new IOException(path+" is not a Mars File");
+		}
+		return new MarsMappedFile(file,map,myID,map.getInt(4));
+	}
+
+	private MarsMappedFile ( RandomAccessFile file, MappedByteBuffer map, int myID, int myownerID )
+	{
+		super(myID,myownerID);
+		this.file = file;
+		cells = new int[0];
+		setMap(map);
+	}
+
+	/* takes the cells of a new mapping */
+	private void setMap ( MappedByteBuffer map )
+	{
+		this.map = map;
+		map.position(MarsDiskFile.HEADER);
+		content = map.slice().asIntBuffer();
+		map.position(0);
+		size = content.capacity()/3;
+	}
+
+	/**
+	 * Gets the file's size (i.e.: no. of Cells)
+	 * @return number of Cells
+	 */
+	public synchronized int getMarsFileSize()
+	{
+		return size;
+	}
+
+	/**
+	 * Sets the new file's ownerID, in the mapping too.
+	 * @param newownerID the new file's owner's ID.
+	 */
+	public synchronized void setMarsFileOwner ( int newownerID )
+	{
+		super.setMarsFileOwner(newownerID);
+		map.putInt(4,newownerID);
+	}
+
+	/**
+	 * Reads the whole file's content.
+	 * @return an array of <CODE>MarsCell</CODE> objects.
+	 */
+	public synchronized MarsCell[] getMarsFileContent()
+	{
+		return getMarsFileCells(0,size);
+	}
+
+	/**
+	 * Replaces the file's content, resizing and mapping again the file.
+	 * @param newcontent an array of <CODE>MarsCell</CODE> objects.
+	 */
+	public synchronized void setMarsFileContent ( MarsCell[] newcontent )
+	{
+		long length = MarsDiskFile.HEADER+(long)MarsDiskFile.CELLBYTES*newcontent.length;
+		try {
+			map.force();
+			file.setLength(length);
+			setMap(file.getChannel().map(FileChannel.MapMode.READ_WRITE,0,length));
+		} catch (IOException e) {
+			throw new IllegalStateException("can't map file "+getMarsFileId()+": "+e.getMessage());
+		}
+		if (size > 0)
+			setMarsFileCells(0,size,newcontent);
+	}
+
+	/**
+	 * Grows the file to <CODE>newsize</CODE> cells, adding empty cells
+	 * at its end, and maps it again.
+	 * @param newsize the new file's size
+	 * @throws SecurityException if the file would be larger than
+	 * <CODE>MAXSIZE</CODE>
+	 */
+	public synchronized void extendMarsFile ( int newsize )
+	{
+		if (newsize <= size)
+			return;
+		if (newsize > MAXSIZE)
+			throw new SecurityException("write: file too large.");
+		long length = MarsDiskFile.HEADER+(long)MarsDiskFile.CELLBYTES*newsize;
+		try {
+			file.setLength(length);
+			setMap(file.getChannel().map(FileChannel.MapMode.READ_WRITE,0,length));
+		} catch (IOException e) {
+			throw new IllegalStateException("can't map file "+getMarsFileId()+": "+e.getMessage());
+		}
+	}
+
+	public synchronized MarsCell[] getMarsFileCells ( int pos, int num )
+	{
+		checkRead(pos,num);
+		MarsCell[] retarray = new MarsCell[num];
+		for ( int i=0, j=3*pos; i<num; i++, j+=3 )
+			retarray[i] = new MarsCell(content.get(j),content.get(j+1),content.get(j+2));
+		return retarray;
+	}
+
+	public synchronized void setMarsFileCell ( int pos, MarsCell towrite )
+	{
+		if (pos>=size)
+			throw new SecurityException("write: out of file size.");
+		content.put(3*pos,towrite.getOpcode());
+		content.put(3*pos+1,towrite.getOperandA());
+		content.put(3*pos+2,towrite.getOperandB());
+	}
+
+	public synchronized void setMarsFileCells ( int pos, int num, MarsCell[] towrite )
+	{
+		checkWrite(pos,num);
+		for ( int i=0, j=3*pos; i<num; i++, j+=3 ) {
+			content.put(j,towrite[i].getOpcode());
+			content.put(j+1,towrite[i].getOperandA());
+			content.put(j+2,towrite[i].getOperandB());
+		}
+	}
+
+	public synchronized void transferTo ( int pos, int num, PrimitiveMemory memory, int address )
+	{
+		checkRead(pos,num);
+		reserve(num);
+		content.position(3*pos);
+		content.get(cells,0,3*num);
+		memory.writeCells(address,cells,0,num);
+	}
+
+	public synchronized void transferFrom ( int pos, int num, PrimitiveMemory memory, int address )
+	{
+		checkWrite(pos,num);
+		reserve(num);
+		memory.readCells(address,cells,0,num);
+		content.position(3*pos);
+		content.put(cells,0,3*num);
+	}
+
+	public synchronized void readCells ( int pos, int num, int[] dst, int dstpos )
+	{
+		checkRead(pos,num);
+		content.position(3*pos);
+		content.get(dst,dstpos,3*num);
+	}
+
+	public synchronized void writeCells ( int pos, int num, int[] src, int srcpos )
+	{
+		checkWrite(pos,num);
+		content.position(3*pos);
+		content.put(src,srcpos,3*num);
+	}
+
+	/**
+	 * Forces the content to the disk.
+	 */
+	public synchronized void force()
+	{
+		map.force();
+	}
+
+	/**
+	 * Forces the content to the disk and closes the file; from now on
+	 * it can't be used.
+	 *
+	 * @throws IOException if the file can't be closed
+	 */
+	public synchronized void close() throws IOException
+	{
+		force();
+		file.close();
+	}
+
+	/* makes room in the buffer for num cells */
+	private void reserve ( int num )
+	{
+		if (cells.length < 3*num)
+			cells = new int[3*num];
+	}
+}
@@ -7,21 +7,44 @@
  * 
  */
 
-public class MarsMemory implements Memory
+import java.nio.IntBuffer;
+
+public class MarsMemory implements PrimitiveMemory
 {
 	private MarsSystemConstant sysconst;
 	private MarsCell[] memory;
+	private MarsCoreGeometry core;
 	private int CoreSize;
+	private MarsDecodeCache cache;
 
 	public MarsMemory()
 	{
-		sysconst = new MarsSystemConstant();
+		this(new MarsSystemConstant());
+	}
+
+	/**
+	 * Constructor for a core of the size given by <CODE>sysconst</CODE>.
+	 *
+	 * @param sysconst the constants of the battle
+	 */
+	public MarsMemory ( MarsSystemConstant sysconst )
+	{
+		this.sysconst = sysconst;
 		CoreSize = sysconst.getCoreSize();
+		core = new MarsCoreGeometry(CoreSize);
 		memory = new MarsCell[CoreSize];
 		for (int i=0; i<CoreSize;i++)
 			memory[i]=new MarsCell();
 	}
 
+	/**
+	 * Returns the number of cells in the memory.
+	 */
+	public int getCoreSize()
+	{
+		return CoreSize;
+	}
+
 	/**
 	 * Reads the MarsCell pointed by index
 	 * @param index specifies the Cell wanted
@@ -29,7 +52,7 @@ public class MarsMemory implements Memory
 	 */
 	public synchronized Cell readCell ( int index )
 	{
-		return memory[index%CoreSize];
+		return memory[core.wrap(index)];
 	}
 
 	/**
@@ -40,7 +63,117 @@ public class MarsMemory implements Memory
 	 */
 	public synchronized void writeCell ( int index, Cell cell )
 	{
-		memory[index%CoreSize] = (MarsCell) cell;
+		int i = core.wrap(index);
+		memory[i] = (MarsCell) cell;
+		written(i);
+	}
+
+	/*
+	 * The primitive accessors never change a cell in place, but replace
+	 * it: the same MarsCell may be shared by the memory and a file.
+	 */
+
+	public synchronized int readOpcode ( int index )
+	{
+		return memory[core.wrap(index)].getOpcode();
+	}
+
+	public synchronized int readOperandA ( int index )
+	{
+		return memory[core.wrap(index)].getOperandA();
+	}
+
+	public synchronized int readOperandB ( int index )
+	{
+		return memory[core.wrap(index)].getOperandB();
+	}
+
+	public synchronized void writeOperandA ( int index, int val )
+	{
+		int i = core.wrap(index);
+		memory[i] = new MarsCell(memory[i].getOpcode(),val,memory[i].getOperandB());
+		written(i);
+	}
+
+	public synchronized void writeOperandB ( int index, int val )
+	{
+		int i = core.wrap(index);
+		memory[i] = new MarsCell(memory[i].getOpcode(),memory[i].getOperandA(),val);
+		written(i);
+	}
+
+	public synchronized void writeCell ( int index, int opcode, int a, int b )
+	{
+		int i = core.wrap(index);
+		memory[i] = new MarsCell(opcode,a,b);
+		written(i);
+	}
+
+	public synchronized void copyCell ( int to, int from )
+	{
+		int i = core.wrap(to);
+		memory[i] = memory[core.wrap(from)];
+		written(i);
+	}
+
+	/* the cells are objects here, so the bulk copies go cell by cell */
+	public synchronized void readCells ( int index, int[] dst, int pos, int count )
+	{
+		if (count < 0 || count > CoreSize)
+			throw new IllegalArgumentException("can't read "+count+" cells");
+		for (int i=core.wrap(index); count>0; count--) {
+			dst[pos++] = memory[i].getOpcode();
+			dst[pos++] = memory[i].getOperandA();
+			dst[pos++] = memory[i].getOperandB();
+			i = (i+1 == CoreSize) ? 0 : i+1;
+		}
+	}
+
+	public synchronized void writeCells ( int index, int[] src, int pos, int count )
+	{
+		if (count < 0 || count > CoreSize)
+			throw new IllegalArgumentException("can't write "+count+" cells");
+		for (int i=core.wrap(index); count>0; count--) {
+			memory[i] = new MarsCell(src[pos],src[pos+1],src[pos+2]);
+			written(i);
+			pos += 3;
+			i = (i+1 == CoreSize) ? 0 : i+1;
+		}
+	}
+
+	public synchronized void saveCells ( IntBuffer dst )
+	{
+		for (int i=0; i<CoreSize; i++) {
+			dst.put(memory[i].getOpcode());
+			dst.put(memory[i].getOperandA());
+			dst.put(memory[i].getOperandB());
+		}
+	}
+
+	public synchronized void loadCells ( IntBuffer src )
+	{
+		for (int i=0; i<CoreSize; i++)
+			memory[i] = new MarsCell(src.get(),src.get(),src.get());
+		if (cache != null)
+			cache.invalidateAll();
+	}
+
+	public synchronized void setDecodeCache ( MarsDecodeCache cache )
+	{
+		this.cache = cache;
+	}
+
+	public synchronized int predecode ( int index )
+	{
+		int i = core.wrap(index);
+		return cache.fill(i,memory[i].getOpcode(),memory[i].getOperandA(),memory[i].getOperandB());
+	}
+
+	/* empties the decode cache entry of the (wrapped) cell i */
+	private void written ( int i )
+	{
+		if (cache != null)
+			cache.invalidate(i);
 	}
 }
 
@@ -0,0 +1,79 @@
+/**
+ *  This is a small contention benchmark for the memory implementations.
+ *  A "processor" thread fetches instructions from the first cells of
+ *  the core while a "DMA" thread keeps writing MaxReadWrite-sized blocks
+ *  at MinimumSeparation cells of distance, i.e. in a disjoint region.
+ *  Each memory type is run with the two threads together; the time per
+ *  fetch and the number of cells written meanwhile by the DMA are printed.
+ *  On a single host core the threads only time-slice, so the figures
+ *  are meaningful on multi-core hosts only.
+ *  Usage: <CODE>java MarsMemoryBench [fetches] [type...]</CODE>
+ *  ----------------------------------------------------------------
+ *  @author Ciro Mattia Gonano <CODE>&lt;gonano@CS.UniBO.It&gt;</CODE>
+ *  @author Jacopo Saporetti <CODE>&lt;saporet3@CS.UniBO.It&gt;</CODE>
+ *  @author Mauro Seno <CODE>&lt;mseno@CS.UniBO.It&gt;</CODE>
+ *  ________________________________________________________________
+ */
+
+public class MarsMemoryBench
+{
+	private static volatile boolean running;
+	private static volatile long written;
+
+	public static void main(String[] args) throws InterruptedException
+	{
+		int fetches = 5000000;
+		String[] types = { "object", "packed", "direct", "striped" };
+		if (args.length > 0)
+			fetches = Integer.parseInt(args[0]);
+		if (args.length > 1) {
+			types = new String[args.length-1];
+			System.arraycopy(args,1,types,0,types.length);
+		}
+		for (int i=0; i<types.length; i++) {
+			/* first round warms up the JIT */
+			bench(types[i],fetches/10);
+			long ns = bench(types[i],fetches);
+			System.out.println(types[i]+": "+(ns/fetches)+" ns/fetch, "+
+					written+" cells written by the DMA meanwhile");
+		}
+	}
+
+	/**
+	 * Runs <CODE>fetches</CODE> fetches on a memory of the given type
+	 * while a DMA-like thread writes blocks of cells.
+	 *
+	 * @return the time spent by the fetching thread, in nanoseconds
+	 */
+	private static long bench ( String type, int fetches ) throws InterruptedException
+	{
+		MarsSystemConstant constants = new MarsSystemConstant();
+		final PrimitiveMemory memory = Run.createMemory(type,constants);
+		final int base = constants.getMinimumSeparation();
+		final int block = constants.getMaxReadWrite();
+		running = true;
+		Thread dma = new Thread() {
+			public void run()
+			{
+				long n = 0;
+				while (running)
+					for (int i=0; i<block; i++, n++)
+						memory.writeCell(base+i,(int)n,(int)n,(int)n);
+				written = n;
+			}
+		};
+		dma.start();
+		long start = System.nanoTime();
+		int sum = 0;
+		for (int i=0; i<fetches; i++) {
+			int pc = i&63;
+			sum += memory.readOpcode(pc)+memory.readOperandA(pc)+memory.readOperandB(pc);
+		}
+		long elapsed = System.nanoTime()-start;
+		running = false;
+		dma.join();
+		if (sum != 0)
+			System.out.println("unexpected checksum "+sum);
+		return elapsed;
+	}
+}
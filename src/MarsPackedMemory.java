@@ -0,0 +1,182 @@
+/**
+ * This class contains an implementation of the interface "Memory"
+ * which keeps the cells packed in a single array of primitives: the
+ * opcode, the operand A and the operand B of the cell <CODE>i</CODE>
+ * are stored at positions <CODE>3i</CODE>, <CODE>3i+1</CODE> and
+ * <CODE>3i+2</CODE>. No MarsCell object is kept in the memory, so
+ * the primitive accessors allocate nothing.
+ * ----------------------------------------------------------------
+ *  @author Ciro Mattia Gonano <CODE>&lt;gonano@CS.UniBO.It&gt;</CODE>
+ *  @author Jacopo Saporetti <CODE>&lt;saporet3@CS.UniBO.It&gt;</CODE>
+ *  @author Mauro Seno <CODE>&lt;mseno@CS.UniBO.It&gt;</CODE>
+ * ________________________________________________________________
+ */
+
+import java.nio.IntBuffer;
+
+public class MarsPackedMemory implements PrimitiveMemory
+{
+	private MarsSystemConstant sysconst;
+	private int[] memory;
+	private MarsCoreGeometry core;
+	private int CoreSize;
+	private MarsDecodeCache cache;
+
+	public MarsPackedMemory()
+	{
+		this(new MarsSystemConstant());
+	}
+
+	/**
+	 * Constructor for a core of the size given by <CODE>sysconst</CODE>.
+	 *
+	 * @param sysconst the constants of the battle
+	 */
+	public MarsPackedMemory ( MarsSystemConstant sysconst )
+	{
+		this.sysconst = sysconst;
+		CoreSize = sysconst.getCoreSize();
+		core = new MarsCoreGeometry(CoreSize);
+		memory = new int[3*CoreSize];
+	}
+
+	/**
+	 * Returns the number of cells in the memory.
+	 */
+	public int getCoreSize()
+	{
+		return CoreSize;
+	}
+
+	/**
+	 * Reads the cell pointed by index.
+	 * @param index specifies the Cell wanted
+	 * @return a copy of the requested cell
+	 */
+	public synchronized Cell readCell ( int index )
+	{
+		int i = 3*core.wrap(index);
+		return new MarsCell(memory[i],memory[i+1],memory[i+2]);
+	}
+
+	/**
+	 * Write in the cell pointed by <CODE>index</CODE>
+	 * the contents specified in <CODE>cell</CODE>.
+	 * @param index the index of the cell
+	 * @param cell the cell whose fields are to be copied
+	 */
+	public synchronized void writeCell ( int index, Cell cell )
+	{
+		int c = core.wrap(index);
+		memory[3*c] = cell.getOpcode();
+		memory[3*c+1] = cell.getOperandA();
+		memory[3*c+2] = cell.getOperandB();
+		written(c);
+	}
+
+	public synchronized int readOpcode ( int index )
+	{
+		return memory[3*core.wrap(index)];
+	}
+
+	public synchronized int readOperandA ( int index )
+	{
+		return memory[3*core.wrap(index)+1];
+	}
+
+	public synchronized int readOperandB ( int index )
+	{
+		return memory[3*core.wrap(index)+2];
+	}
+
+	public synchronized void writeOperandA ( int index, int val )
+	{
+		int c = core.wrap(index);
+		memory[3*c+1] = val;
+		written(c);
+	}
+
+	public synchronized void writeOperandB ( int index, int val )
+	{
+		int c = core.wrap(index);
+		memory[3*c+2] = val;
+		written(c);
+	}
+
+	public synchronized void writeCell ( int index, int opcode, int a, int b )
+	{
+		int c = core.wrap(index);
+		memory[3*c] = opcode;
+		memory[3*c+1] = a;
+		memory[3*c+2] = b;
+		written(c);
+	}
+
+	public synchronized void copyCell ( int to, int from )
+	{
+		int c = core.wrap(to);
+		System.arraycopy(memory,3*core.wrap(from),memory,3*c,3);
+		written(c);
+	}
+
+	public synchronized void readCells ( int index, int[] dst, int pos, int count )
+	{
+		if (count < 0 || count > CoreSize)
+			throw new IllegalArgumentException("can't read "+count+" cells");
+		int c = core.wrap(index);
+		int n = Math.min(count,CoreSize-c);
+		System.arraycopy(memory,3*c,dst,pos,3*n);
+		if (n < count)
+			System.arraycopy(memory,0,dst,pos+3*n,3*(count-n));
+	}
+
+	public synchronized void writeCells ( int index, int[] src, int pos, int count )
+	{
+		if (count < 0 || count > CoreSize)
+			throw new IllegalArgumentException("can't write "+count+" cells");
+		int c = core.wrap(index);
+		int n = Math.min(count,CoreSize-c);
+		System.arraycopy(src,pos,memory,3*c,3*n);
+		written(c,n);
+		if (n < count) {
+			System.arraycopy(src,pos+3*n,memory,0,3*(count-n));
+			written(0,count-n);
+		}
+	}
+
+	public synchronized void saveCells ( IntBuffer dst )
+	{
+		dst.put(memory);
+	}
+
+	public synchronized void loadCells ( IntBuffer src )
+	{
+		src.get(memory);
+		if (cache != null)
+			cache.invalidateAll();
+	}
+
+	public synchronized void setDecodeCache ( MarsDecodeCache cache )
+	{
+		this.cache = cache;
+	}
+
+	public synchronized int predecode ( int index )
+	{
+		int c = core.wrap(index);
+		return cache.fill(c,memory[3*c],memory[3*c+1],memory[3*c+2]);
+	}
+
+	/* empties the decode cache entry of the (wrapped) cell c */
+	private void written ( int c )
+	{
+		if (cache != null)
+			cache.invalidate(c);
+	}
+
+	private void written ( int c, int count )
+	{
+		if (cache != null)
+			cache.invalidate(c,count);
+	}
+}
@@ -4,7 +4,7 @@
  *  @author Giovanni Melaga
  *  @author Alberto Montresor
  */
-public class MarsProcessor extends Thread implements Processor, TimerUser
+public class MarsProcessor extends Thread implements Processor, BurstTimerUser
 {
 	///////////////////////////////////////////////////////////////////////////
 	// Internal constants
@@ -44,7 +44,10 @@ public class MarsProcessor extends Thread implements Processor, TimerUser
 	///////////////////////////////////////////////////////////////////////////
 
 	/** Registered interrupt handlers */
-	public MarsInterruptHandler[] handlers;
+	public InterruptHandler[] handlers;
+
+	/** Interrupt controller drained at every instruction boundary, if any */
+	public MarsInterruptController controller;
 
 	/** Program counter */
 	public int PC;
@@ -53,7 +56,7 @@ public class MarsProcessor extends Thread implements Processor, TimerUser
 	public int[] registers;
 
 	/** Memory */
-	public MarsMemory memory;
+	public PrimitiveMemory memory;
 
 	/** Timer */
 	public MarsTimer timer;
@@ -61,6 +64,12 @@ public class MarsProcessor extends Thread implements Processor, TimerUser
 	/** Constants */
 	public MarsSystemConstant constants;
 
+	/** Address wrapping for the core */
+	public MarsCoreGeometry core;
+
+	/** Predecoded shadow of the memory */
+	public MarsDecodeCache decoded;
+
 	/** Ticked? */
 	public boolean ticked;
 
@@ -70,17 +79,29 @@ public class MarsProcessor extends Thread implements Processor, TimerUser
 	/** Aliveness */
 	public boolean dead;
 
+	/** Has the current step raised an interrupt? */
+	public boolean trapped;
+
+	/** No thread to run: set by the scheduler */
+	public volatile boolean idle;
+
+	/** Tick of the current window the step being executed belongs to */
+	public int stepping;
+
 	///////////////////////////////////////////////////////////////////////////
 	// Constructor
 	///////////////////////////////////////////////////////////////////////////
 
-	public MarsProcessor (MarsMemory mem, MarsSystemConstant consta, MarsTimer tim)
+	public MarsProcessor (PrimitiveMemory mem, MarsSystemConstant consta, MarsTimer tim)
 	{
 		memory = mem;
 		constants = consta;
+		core = new MarsCoreGeometry(mem.getCoreSize());
+		decoded = new MarsDecodeCache(mem.getCoreSize());
+		memory.setDecodeCache(decoded);
 		registers = new int[NREGISTERS];
 		PC = 0;
-		handlers = new MarsInterruptHandler[NINTERRUPTS];
+		handlers = new InterruptHandler[NINTERRUPTS];
 		timer = tim;
 		dead=false;
 		ticked=false;
@@ -106,7 +127,18 @@ public class MarsProcessor extends Thread implements Processor, TimerUser
 	{
 		if (irqn < 0 || irqn > NINTERRUPTS)
 			throw new IllegalArgumentException();
-		handlers[irqn] = (MarsInterruptHandler) handler;
+		handlers[irqn] = handler;
+	}
+
+	/**
+	 * Sets the interrupt controller the handlers post to: the processor
+	 * delivers its pending interrupts at every instruction boundary.
+	 *
+	 * @param controller the controller to drain
+	 */
+	public void setInterruptController ( MarsInterruptController controller )
+	{
+		this.controller = controller;
 	}
 
 	/**
@@ -116,7 +148,7 @@ public class MarsProcessor extends Thread implements Processor, TimerUser
 	 */
 	public void setPC(int address)
 	{
-		PC = address % constants.getCoreSize();
+		PC = core.wrap(address);
 	}
 
 	/**
@@ -179,8 +211,7 @@ public class MarsProcessor extends Thread implements Processor, TimerUser
 				} catch (InterruptedException e) {}
 			if (dead)
 				break;
-			step();
-			timer.tickCompleted(myID);
+			timer.tickCompleted(myID,runTicks(timer.getTickWindow()));
 			ticked=false;
 		}
 		System.out.println("Shutting down CPU...");
@@ -207,27 +238,104 @@ public class MarsProcessor extends Thread implements Processor, TimerUser
 		this.notify();
 	}
 
+	/**
+	 * Executes up to <CODE>ticks</CODE> steps, stopping right after a
+	 * step that has raised an interrupt: the interrupt handler may
+	 * switch thread or set a new timeout, so the timer must regain
+	 * control before going on. The interrupts posted to the controller
+	 * are delivered between the steps, and end the window as well.
+	 *
+	 * @param ticks the number of steps that may be executed
+	 * @return the number of steps executed
+	 */
+	public int runTicks ( int ticks )
+	{
+		int done = 0;
+		trapped = false;
+		if (idle)
+			return ticks;
+		while (done < ticks && !dead) {
+			stepping = done;
+			step();
+			done++;
+			if (controller != null && controller.isPending() && controller.drain() > 0)
+				trapped = true;
+			if (trapped)
+				break;
+		}
+		return done;
+	}
+
+	/**
+	 * Returns the tick of the current window, counting from 0, in which
+	 * the step being executed is performed.
+	 *
+	 * @return the tick in the window
+	 */
+	public int getWindowTick()
+	{
+		return stepping;
+	}
+
+	/**
+	 * Tells whether the scheduler has found no thread to run: then
+	 * the processor's ticks are skipped until a thread is awakened.
+	 *
+	 * @return true if the processor is idle
+	 */
+	public boolean isIdle()
+	{
+		return idle;
+	}
+
+	/**
+	 * An idle tick leaves no trace on the processor.
+	 *
+	 * @param ticks the number of idle ticks
+	 */
+	public void idleTicks ( int ticks )
+	{
+	}
+
+	/**
+	 * Sets the processor idle, or running again.
+	 *
+	 * @param idle true if there is no thread to run
+	 */
+	public void setIdle ( boolean idle )
+	{
+		this.idle = idle;
+	}
+
+	/**
+	 * Raises an interrupt, marking the current step as trapped.
+	 */
+	private void raise ( int irqn, int data1, int data2 )
+	{
+		trapped = true;
+		handlers[irqn].interrupt(irqn, data1, data2);
+	}
+
 	/**
 	 * This executes a single step of the system call.
+	 * The instruction is taken from the decode cache, where the opcode
+	 * and the operands have already been checked; the cell is decoded
+	 * only if it has been written since its last execution.
 	 */
 	public void step()
 	{
-		MarsCell cell = (MarsCell)memory.readCell(PC);
-		int opcode =  cell.getOpcode();
-		int A = cell.getOperandA();
-		int B = cell.getOperandB();
+		int handler = decoded.getHandler(PC);
+		if (handler == MarsDecodeCache.EMPTY)
+			handler = memory.predecode(PC);
+		int A = decoded.getOperandA(PC);
+		int B = decoded.getOperandB(PC);
 
 		setPC(PC+1);
 		//System.out.println("Letto cella "+PC+"\t- opcode = "+opcode);
 		//System.out.println("                 \t- operand A = "+A);
 		//System.out.println("                 \t- operand B = "+B);
 
-		if (A < 0 || A >= NREGISTERS || B < 0 || B >= NREGISTERS)
-		{
-			handlers[2].interrupt(2, 0, 0);
-			return;
-		}
-		switch (opcode)
+		switch (handler)
 		{
 			case IMM:
 				Imm(A, B);
@@ -284,7 +392,7 @@ public class MarsProcessor extends Thread implements Processor, TimerUser
 				Syscall(A, B);
 				break;
 			default:
-				handlers[2].interrupt(2, 0, 0);
+				raise(2, 0, 0);
 				break;
 		}
 	}
@@ -296,27 +404,27 @@ public class MarsProcessor extends Thread implements Processor, TimerUser
 
 	private void Copy(int Rx, int Ry)
 	{
-		memory.writeCell((PC+registers[Rx]), memory.readCell(PC+registers[Ry]));
+		memory.copyCell((PC+registers[Rx]), (PC+registers[Ry]));
 	}
 
 	private void LoadA(int Rx, int Ry)
 	{
-		registers[Rx] = memory.readCell(PC+registers[Ry]).getOperandA();
+		registers[Rx] = memory.readOperandA(PC+registers[Ry]);
 	}
 
 	private void LoadB(int Rx, int Ry)
 	{
-		registers[Rx] = memory.readCell(PC+registers[Ry]).getOperandB();
+		registers[Rx] = memory.readOperandB(PC+registers[Ry]);
 	}
 
 	private void StoreA(int Rx, int Ry)
 	{
-		memory.readCell(PC+registers[Ry]).setOperandA(registers[Rx]);
+		memory.writeOperandA(PC+registers[Ry], registers[Rx]);
 	}
 
 	private void StoreB(int Rx, int Ry)
 	{
-		memory.readCell(PC+registers[Ry]).setOperandB(registers[Rx]);
+		memory.writeOperandB(PC+registers[Ry], registers[Rx]);
 	}
 
 	private void Move(int Rx, int Ry)
@@ -380,6 +488,6 @@ public class MarsProcessor extends Thread implements Processor, TimerUser
 
 	public void Syscall(int A, int B)
 	{
-		handlers[0].interrupt(0, A, B);
+		raise(0, A, B);
 	}
 } // END MarsProcessor
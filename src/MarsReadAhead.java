@@ -0,0 +1,131 @@
+/**
+ *  This class is the read-ahead of a file descriptor. It follows the
+ *  reads made through the descriptor and, while they are sequential,
+ *  asks the DMA to prefetch the cells following the last one read in
+ *  a window which doubles at every sequential read, up to a maximum;
+ *  a read out of sequence drops the window. The DMA fills the window
+ *  in the ticks its channels have nothing else to do, and a read whose
+ *  cells are all in the window is served from it at once.
+ *  ----------------------------------------------------------------
+ *  @author Ciro Mattia Gonano <CODE>&lt;gonano@CS.UniBO.It&gt;</CODE>
+ *  @author Jacopo Saporetti <CODE>&lt;saporet3@CS.UniBO.It&gt;</CODE>
+ *  @author Mauro Seno <CODE>&lt;mseno@CS.UniBO.It&gt;</CODE>
+ *  ________________________________________________________________
+ */
+
+public class MarsReadAhead
+{
+	private int pid;
+	private int file;
+	private int filesize;
+	private int max;		/* largest window */
+	private int next;		/* where the next sequential read starts */
+	private int window;		/* cells to prefetch, 0 if not sequential */
+	private int start;		/* file position of the first cell of the window */
+	private int filled;		/* cells already prefetched */
+	private int wanted;		/* cells of the window to prefetch */
+	private int[] cells;		/* the window, three ints per cell */
+
+	/**
+	 * Constructor.
+	 *
+	 * @param pid the process owning the file
+	 * @param file the id of the file
+	 * @param filesize the number of cells of the file
+	 * @param max the largest window, in cells
+	 */
+	public MarsReadAhead ( int pid, int file, int filesize, int max )
+	{
+		this.pid = pid;
+		this.file = file;
+		this.filesize = filesize;
+		this.max = max;
+		cells = new int[3*max];
+	}
+
+	/**
+	 * Returns the id of the file.
+	 */
+	public int getFile()
+	{
+		return file;
+	}
+
+	/**
+	 * Follows a read of <CODE>size</CODE> cells from <CODE>offset</CODE>
+	 * on and, if they have all been prefetched, copies them into the
+	 * memory from <CODE>address</CODE> on. Then the window is moved
+	 * past the read, and enlarged if the read was sequential.
+	 *
+	 * @param offset the position of the first cell read
+	 * @param size the number of cells read
+	 * @param memory the core
+	 * @param address where the cells go
+	 * @return true if the cells have been copied, false if they must
+	 * be transferred
+	 */
+	public synchronized boolean read ( int offset, int size, PrimitiveMemory memory, int address )
+	{
+		boolean served = false;
+		if (offset == next && window > 0) {
+			if (offset >= start && offset+size <= start+filled) {
+				memory.writeCells(address,cells,3*(offset-start),size);
+				served = true;
+			}
+			window = Math.min(2*window,max);
+		}
+		else
+			window = Math.min(size,max);
+		next = offset+size;
+		/* keeps the cells of the window after the read */
+		if (next >= start && next < start+filled) {
+			filled -= next-start;
+			System.arraycopy(cells,3*(next-start),cells,0,3*filled);
+		}
+		else
+			filled = 0;
+		start = next;
+		wanted = Math.max(0,Math.min(window,filesize-next));
+		return served;
+	}
+
+	/**
+	 * Tells whether some cells of the window are still to be prefetched.
+	 */
+	public synchronized boolean isPending()
+	{
+		return filled < wanted;
+	}
+
+	/**
+	 * Prefetches up to <CODE>burst</CODE> cells of the window, through
+	 * the cache if there is one.
+	 *
+	 * @param storage the storage the file is in
+	 * @param cache the block cache of the DMA, or null
+	 * @param burst the maximum number of cells to prefetch
+	 * @return the number of cells prefetched
+	 */
+	public synchronized int fill ( MarsStorage storage, MarsBlockCache cache, int burst )
+	{
+		int n = Math.min(burst,wanted-filled);
+		if (n <= 0)
+			return 0;
+		if (cache != null)
+			cache.read(pid,file,start+filled,n,cells,3*filled);
+		else
+			storage.getOwnedFile(pid,file,"read").readCells(start+filled,n,cells,3*filled);
+		filled += n;
+		return n;
+	}
+
+	/**
+	 * Drops the prefetched cells, which a write has made stale; they'll
+	 * be prefetched again after the next read.
+	 */
+	public synchronized void invalidate()
+	{
+		filled = 0;
+		wanted = 0;
+	}
+}
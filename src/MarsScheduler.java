@@ -7,6 +7,7 @@
  * ________________________________________________
  */
 
+import java.nio.IntBuffer;
 import java.util.LinkedList;
 import java.util.NoSuchElementException;
 
@@ -19,7 +20,7 @@ public class MarsScheduler
 	private int prioritylevels;
 	private int csbeforetie;
 	private MarsThread[][] threads;
-	private LinkedList[][] queues;
+	private LinkedList<MarsThread>[][] queues;
 	private int PC;
 	private int curproc;
 	private int curth;
@@ -40,7 +41,7 @@ public class MarsScheduler
 		queues = new LinkedList[numprocesses][prioritylevels];
 		for ( int i=0; i<numprocesses; i++ )
 			for ( int j=0; j<prioritylevels; j++ )
-				queues[i][j]=new LinkedList();
+				queues[i][j]=new LinkedList<MarsThread>();
 		curproc=0;
 		CPU = myCPU;
 		timer = tim;
@@ -126,6 +127,19 @@ public class MarsScheduler
 		return curproc;
 	}
 
+	/**
+	 * Returns the priority of a thread.
+	 *
+	 * @param pid the owner process' ID
+	 * @param tid the id of the thread
+	 *
+	 * @return the priority, where 0 is the highest one
+	 */
+	public int getPriority ( int pid, int tid )
+	{
+		return threads[pid][tid].getPriority();
+	}
+
 	/**
 	 * Returns the current threadID.
 	 *
@@ -187,6 +201,7 @@ public class MarsScheduler
 		else {
 			curth=nextthread.getThreadID();
 			swapInThread(curth);
+			CPU.setIdle(false);
 			queues[curproc][i].addLast(nextthread);	// current thread is always the last in its
 								// priority queue.
 			return true;
@@ -223,9 +238,9 @@ public class MarsScheduler
 		threads[pid][tid].setState(2);
 		int pri;
 		if ((pri=threads[pid][tid].getPriority())>0) {
-			queues[curproc][pri].remove(threads[pid][tid]);
+			queues[pid][pri].remove(threads[pid][tid]);
 			threads[pid][tid].setPriority(--pri);	// an I/O bound thread gets higher priority
-			queues[curproc][pri].addLast(threads[pid][tid]);
+			queues[pid][pri].addLast(threads[pid][tid]);
 		}
 		return threads[pid][tid].getPriority();
 	}
@@ -256,6 +271,86 @@ public class MarsScheduler
 		return pri;
 	}
 
+	/**
+	 * Tests if any thread of any process is runnable.
+	 *
+	 * @return false if every living thread is blocked on I/O
+	 */
+	public synchronized boolean hasRunnableThread()
+	{
+		for (int i=0; i<numprocesses; i++)
+			if (testProcessState(i)==2)
+				return true;
+		return false;
+	}
+
+	/**
+	 * Returns the number of ints written by <CODE>saveState()</CODE>.
+	 */
+	public int getStateSize()
+	{
+		return 3 + numprocesses*maxtasks*(3+MarsProcessor.NREGISTERS) +
+			numprocesses*prioritylevels*(1+maxtasks);
+	}
+
+	/**
+	 * Saves the thread tables and the ready queues of every process.
+	 * The scheduler must not be used while saving.
+	 *
+	 * @param dst where to store the state
+	 */
+	public synchronized void saveState ( IntBuffer dst )
+	{
+		dst.put(curproc);
+		dst.put(curth);
+		dst.put(csbeforetie);
+		for ( int i=0; i<numprocesses; i++ )
+			for ( int j=0; j<maxtasks; j++ ) {
+				dst.put(threads[i][j].getState());
+				dst.put(threads[i][j].getPriority());
+				dst.put(threads[i][j].getPC());
+				for ( int r=0; r<MarsProcessor.NREGISTERS; r++ )
+					dst.put(threads[i][j].getReg(r));
+			}
+		for ( int i=0; i<numprocesses; i++ )
+			for ( int j=0; j<prioritylevels; j++ ) {
+				dst.put(queues[i][j].size());
+				for ( int k=0; k<maxtasks; k++ )
+					dst.put( k<queues[i][j].size() ?
+						((MarsThread)queues[i][j].get(k)).getThreadID() : -1 );
+			}
+	}
+
+	/**
+	 * Restores the state saved by <CODE>saveState()</CODE>.
+	 *
+	 * @param src where to read the state
+	 */
+	public synchronized void loadState ( IntBuffer src )
+	{
+		curproc = src.get();
+		curth = src.get();
+		csbeforetie = src.get();
+		for ( int i=0; i<numprocesses; i++ )
+			for ( int j=0; j<maxtasks; j++ ) {
+				threads[i][j].setState(src.get());
+				threads[i][j].setPriority(src.get());
+				threads[i][j].setPC(src.get());
+				for ( int r=0; r<MarsProcessor.NREGISTERS; r++ )
+					threads[i][j].setReg(r,src.get());
+			}
+		for ( int i=0; i<numprocesses; i++ )
+			for ( int j=0; j<prioritylevels; j++ ) {
+				int size = src.get();
+				queues[i][j].clear();
+				for ( int k=0; k<maxtasks; k++ ) {
+					int tid = src.get();
+					if (k<size)
+						queues[i][j].addLast(threads[i][tid]);
+				}
+			}
+	}
+
 	/**
 	 * Selects the next process, setting it as the current process.
 	 * Selection mechanism is a round-robin circular list.
@@ -270,7 +365,9 @@ public class MarsScheduler
 	/**
 	 * Context switch: test if there's a winner process, then tests the other processes
 	 * to see wether they are in a running state; schedules the first running
-	 * process. 
+	 * process. If every other process is blocked on I/O, the current
+	 * one goes on running; if it's blocked too, the processor is left
+	 * idle until a thread is awakened.
 	 *
 	 * @return true if there's a winner, false if the battle continues
 	 */
@@ -283,29 +380,38 @@ public class MarsScheduler
 		boolean found=false;
 		int i;
 		swapOutCurrentThread();
-		do {
-			//System.out.println("Starting test loop...");
-			for (i=0; i<(numprocesses-1); i++)
+		//System.out.println("Starting test loop...");
+		for (i=0; i<(numprocesses-1); i++)
+		{
+			//System.out.println("Test loop #"+i);
+			int k = selectProc(curproc+i);
+			int state=testProcessState(k);
+			//System.out.println("State of process "+k+" is: "+state);
+			if (winner && state > 0 )
+				winner=false;
+			if (state==2)	// we have our man!
 			{
-				//System.out.println("Test loop #"+i);
-				int k = selectProc(curproc+i);
-				int state=testProcessState(k);
-				//System.out.println("State of process "+k+" is: "+state);
-				if (winner && state > 0 )
-					winner=false;
-				if (state==2)	// we have our man!
-				{
-					found=true;
-					curproc=k;
-					if (!runNextThread())
-						throw new RuntimeException("running process but no thread is running!");
-					System.out.println(" ==> scheduled running process - ID: "+curproc);
-					System.out.println(" ==> scheduled thread "+curth);
-					break;
-				}
+				found=true;
+				curproc=k;
+				if (!runNextThread())
+					throw new RuntimeException("running process but no thread is running!");
+				System.out.println(" ==> scheduled running process - ID: "+curproc);
+				System.out.println(" ==> scheduled thread "+curth);
+				break;
+			}
+		}
+		/* the other processes are blocked on I/O: rather than spinning
+		 * until a DMA completion, keep this process or idle the CPU */
+		if ((!winner) && (!found)) {
+			if (testProcessState(curproc)==2 && runNextThread()) {
+				System.out.println(" ==> scheduled running process - ID: "+curproc);
+				System.out.println(" ==> scheduled thread "+curth);
+			}
+			else {
+				System.out.println(" ==> no runnable thread: CPU idle");
+				CPU.setIdle(true);
 			}
 		}
-		while ((!winner) && (!found));
 
 		if (winner) {
 			System.out.println(" ***********************************");
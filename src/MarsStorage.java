@@ -1,5 +1,7 @@
 /**
  * This is the implementation of the interface "Storage"
+ * The files are kept in a table indexed by their ID, and the IDs of the
+ * removed files are given again to the new ones.
  * -----------------------------------------------------
  * @author Ciro Mattia Gonano <CODE>&lt;gonano@CS.UniBO.It&gt;</CODE>
  * @author Jacopo Saporetti <CODE>&lt;saporet3@CS.UniBO.It&gt;</CODE>
@@ -7,16 +9,18 @@
  * 
  */
 
-import java.util.ArrayList;
-import java.util.NoSuchElementException;
-
 public class MarsStorage implements Storage
 {
-	private ArrayList storage;
+	private MarsFile[] storage;	/* the files, indexed by ID; null if free */
+	private int count;		/* files in the storage */
+	private int limit;		/* one more than the highest ID ever used */
+	private int[] free;		/* IDs released, to be given again */
+	private int nfree;
 
 	public MarsStorage()
 	{
-		storage = new ArrayList();
+		storage = new MarsFile[16];
+		free = new int[16];
 	}
 
 	/**
@@ -26,7 +30,18 @@ public class MarsStorage implements Storage
 	 */
 	public int getMarsStorageSize()
 	{
-		return storage.size();
+		return count;
+	}
+
+	/**
+	 * Returns one more than the highest file ID in use: the files are
+	 * found among the IDs below it.
+	 *
+	 * @return int
+	 */
+	public int getMarsStorageLimit()
+	{
+		return limit;
 	}
 
 	/**
@@ -34,27 +49,82 @@ public class MarsStorage implements Storage
 	 *
 	 * @param fileIndex the index of the file wanted
 	 * 
-	 * @return a MarsFile object
+	 * @return a MarsFile object, or null if there is no such file
 	 */
 	public MarsFile getMarsStorageFile ( int fileIndex )
 	{
-		MarsFile file;
-		try { file = (MarsFile) storage.get(fileIndex);
-		} catch (NoSuchElementException e) {
-			file = (MarsFile) null;
-		}
-		return file;
+		if ( (fileIndex<0) || (fileIndex>=limit) )
+			return (MarsFile) null;
+		return storage[fileIndex];
 	}
 
 	/**
-	 * Sets a file which ID is fileIndex.
+	 * Sets a file which ID is fileIndex, replacing the one with the same
+	 * ID if any.
 	 *
 	 * @param fileIndex the index of the new file
 	 * @param file the file to be set
 	 */
 	public void setMarsStorageFile ( int fileIndex, MarsFile file )
 	{
-		storage.add(fileIndex,file);
+		if (fileIndex < 0)
+			throw new IllegalArgumentException("negative file ID: "+fileIndex);
+		if (fileIndex >= storage.length) {
+			MarsFile[] bigger = new MarsFile[Math.max(fileIndex+1,2*storage.length)];
+			System.arraycopy(storage,0,bigger,0,limit);
+			storage = bigger;
+		}
+		if (fileIndex >= limit)
+			limit = fileIndex+1;
+		if (storage[fileIndex] == null)
+			count++;
+		storage[fileIndex] = file;
+	}
+
+	/**
+	 * Adds a file with a new ID, reusing the one of a removed file if
+	 * there is one.
+	 *
+	 * @param file the file to be added
+	 * @return the ID of the file
+	 */
+	public int addMarsStorageFile ( MarsFile file )
+	{
+		int fileIndex = limit;
+		/* an ID set again after being freed is skipped */
+		while (nfree > 0)
+			if (getMarsStorageFile(free[--nfree]) == null) {
+				fileIndex = free[nfree];
+				break;
+			}
+		file.setMarsFileId(fileIndex);
+		setMarsStorageFile(fileIndex,file);
+		return fileIndex;
+	}
+
+	/**
+	 * Removes the file with ID <CODE>fileIndex</CODE>, whose ID may then
+	 * be given to a new file. Only the DMA removes files, through
+	 * <CODE>MarsDMA.removeFile()</CODE>, as it must first drop what it
+	 * keeps of them.
+	 *
+	 * @param fileIndex the index of the file to be removed
+	 * @return the file removed, or null if there was no such file
+	 */
+	MarsFile removeMarsStorageFile ( int fileIndex )
+	{
+		MarsFile file = getMarsStorageFile(fileIndex);
+		if (file == null)
+			return file;
+		storage[fileIndex] = null;
+		count--;
+		if (nfree == free.length) {
+			int[] bigger = new int[2*nfree];
+			System.arraycopy(free,0,bigger,0,nfree);
+			free = bigger;
+		}
+		free[nfree++] = fileIndex;
+		return file;
 	}
 
 	/**
@@ -69,14 +139,8 @@ public class MarsStorage implements Storage
 	 */
 	public Cell[] read ( int pid, int fileID, int offset, int size )
 	{
-		MarsFile file;
-		try { file = (MarsFile) storage.get(fileID);
-		} catch ( NoSuchElementException e) {
-			throw new SecurityException("File not found."); }
-		if ( (file.getMarsFileOwner()) != pid )
-			throw new SecurityException("read: process does not own the file!");
-		else
-			return (Cell[])file.getMarsFileCells(offset,size);
+		MarsFile file = getOwnedFile(pid,fileID,"read");
+		return (Cell[])file.getMarsFileCells(offset,size);
 	}
 
 	/**
@@ -90,14 +154,66 @@ public class MarsStorage implements Storage
 	 */
 	public void write ( int pid, int fileID, int offset, Cell[] towrite )
 	{
-		MarsFile file;
-		try { file = (MarsFile) storage.get(fileID);
-		} catch ( NoSuchElementException e) {
-			throw new SecurityException("File not found."); }
+		MarsFile file = getOwnedFile(pid,fileID,"write");
+		file.setMarsFileCells(offset,towrite.length,(MarsCell[])towrite);
+	}
+
+	/**
+	 * Copies <CODE>size</CODE> cells from the file specified by
+	 * <CODE>fileID</CODE>, starting from the position specified by
+	 * <CODE>offset</CODE>, straight into the memory from
+	 * <CODE>address</CODE> on.
+	 * 
+	 * @param pid the process id.
+	 * @param fileID the file id where to read cells.
+	 * @param offset where to begin to read cells.
+	 * @param size number of cell to be read.
+	 * @param memory where to copy the cells.
+	 * @param address the address of the first cell in memory.
+	 */
+	public void readToMemory ( int pid, int fileID, int offset, int size, PrimitiveMemory memory, int address )
+	{
+		MarsFile file = getOwnedFile(pid,fileID,"read");
+		file.transferTo(offset,size,memory,address);
+	}
+
+	/**
+	 * Copies <CODE>size</CODE> cells of the memory, from
+	 * <CODE>address</CODE> on, straight into the file identified by
+	 * <CODE>fileID</CODE>, starting from the position specified by
+	 * <CODE>offset</CODE>.
+	 * 
+	 * @param pid the process id.
+	 * @param fileID the file id where to write cells.
+	 * @param offset where to begin to write cells.
+	 * @param size number of cell to be written.
+	 * @param memory where to copy the cells from.
+	 * @param address the address of the first cell in memory.
+	 */
+	public void writeFromMemory ( int pid, int fileID, int offset, int size, PrimitiveMemory memory, int address )
+	{
+		MarsFile file = getOwnedFile(pid,fileID,"write");
+		file.transferFrom(offset,size,memory,address);
+	}
+
+	/**
+	 * Returns the file with ID <CODE>fileID</CODE>, if it belongs to the
+	 * process <CODE>pid</CODE>.
+	 *
+	 * @param pid the process id.
+	 * @param fileID the file id.
+	 * @param what the operation, for the message of the exception.
+	 * @return the file
+	 * @throws SecurityException if the file doesn't exist or belongs to
+	 * another process
+	 */
+	public MarsFile getOwnedFile ( int pid, int fileID, String what )
+	{
+		MarsFile file = getMarsStorageFile(fileID);
+		if (file == null)
+			throw new SecurityException("File not found.");
 		if ( (file.getMarsFileOwner()) != pid )
-			throw new SecurityException("write: process does not own the file!");
-		else
-			file.setMarsFileCells(offset,towrite.length,(MarsCell[])towrite);
+			throw new SecurityException(what+": process does not own the file!");
+		return file;
 	}
 }
-
@@ -0,0 +1,242 @@
+/**
+ * This class contains a concurrent implementation of the interface
+ * "Memory". Cells are packed as in MarsPackedMemory, but instead of
+ * locking the whole memory on each access, the core is split in
+ * blocks of <CODE>STRIPESIZE</CODE> cells and every block is guarded
+ * by one of <CODE>STRIPES</CODE> locks. The processor and the DMA
+ * can so touch disjoint regions of the core without serializing.
+ * ----------------------------------------------------------------
+ *  @author Ciro Mattia Gonano <CODE>&lt;gonano@CS.UniBO.It&gt;</CODE>
+ *  @author Jacopo Saporetti <CODE>&lt;saporet3@CS.UniBO.It&gt;</CODE>
+ *  @author Mauro Seno <CODE>&lt;mseno@CS.UniBO.It&gt;</CODE>
+ * ________________________________________________________________
+ */
+
+import java.nio.IntBuffer;
+
+public class MarsStripedMemory implements PrimitiveMemory
+{
+	/** Number of locks; must be a power of two */
+	public static final int STRIPES = 64;
+
+	/** Number of consecutive cells guarded by the same lock */
+	public static final int STRIPESIZE = 64;
+
+	private MarsSystemConstant sysconst;
+	private int[] memory;
+	private Object[] locks;
+	private MarsCoreGeometry core;
+	private int CoreSize;
+	private MarsDecodeCache cache;
+
+	public MarsStripedMemory()
+	{
+		this(new MarsSystemConstant());
+	}
+
+	/**
+	 * Constructor for a core of the size given by <CODE>sysconst</CODE>.
+	 *
+	 * @param sysconst the constants of the battle
+	 */
+	public MarsStripedMemory ( MarsSystemConstant sysconst )
+	{
+		this.sysconst = sysconst;
+		CoreSize = sysconst.getCoreSize();
+		core = new MarsCoreGeometry(CoreSize);
+		memory = new int[3*CoreSize];
+		locks = new Object[STRIPES];
+		for (int i=0; i<STRIPES; i++)
+			locks[i] = new Object();
+	}
+
+	/**
+	 * Returns the number of cells in the memory.
+	 */
+	public int getCoreSize()
+	{
+		return CoreSize;
+	}
+
+	/* returns the stripe of the (already wrapped) cell i */
+	private int stripe ( int i )
+	{
+		return (i/STRIPESIZE)&(STRIPES-1);
+	}
+
+	/* returns the lock guarding the (already wrapped) cell i */
+	private Object lock ( int i )
+	{
+		return locks[stripe(i)];
+	}
+
+	/**
+	 * Reads the cell pointed by index.
+	 * @param index specifies the Cell wanted
+	 * @return a copy of the requested cell
+	 */
+	public Cell readCell ( int index )
+	{
+		int i = core.wrap(index);
+		synchronized (lock(i)) {
+			return new MarsCell(memory[3*i],memory[3*i+1],memory[3*i+2]);
+		}
+	}
+
+	/**
+	 * Write in the cell pointed by <CODE>index</CODE>
+	 * the contents specified in <CODE>cell</CODE>.
+	 * @param index the index of the cell
+	 * @param cell the cell whose fields are to be copied
+	 */
+	public void writeCell ( int index, Cell cell )
+	{
+		writeCell(index,cell.getOpcode(),cell.getOperandA(),cell.getOperandB());
+	}
+
+	public int readOpcode ( int index )
+	{
+		int i = core.wrap(index);
+		synchronized (lock(i)) {
+			return memory[3*i];
+		}
+	}
+
+	public int readOperandA ( int index )
+	{
+		int i = core.wrap(index);
+		synchronized (lock(i)) {
+			return memory[3*i+1];
+		}
+	}
+
+	public int readOperandB ( int index )
+	{
+		int i = core.wrap(index);
+		synchronized (lock(i)) {
+			return memory[3*i+2];
+		}
+	}
+
+	public void writeOperandA ( int index, int val )
+	{
+		int i = core.wrap(index);
+		synchronized (lock(i)) {
+			memory[3*i+1] = val;
+			written(i);
+		}
+	}
+
+	public void writeOperandB ( int index, int val )
+	{
+		int i = core.wrap(index);
+		synchronized (lock(i)) {
+			memory[3*i+2] = val;
+			written(i);
+		}
+	}
+
+	public void writeCell ( int index, int opcode, int a, int b )
+	{
+		int i = core.wrap(index);
+		synchronized (lock(i)) {
+			memory[3*i] = opcode;
+			memory[3*i+1] = a;
+			memory[3*i+2] = b;
+			written(i);
+		}
+	}
+
+	public void copyCell ( int to, int from )
+	{
+		int i = core.wrap(to);
+		int j = core.wrap(from);
+		Object first = lock(i);
+		Object second = lock(j);
+		/* always take the locks in the same order, to avoid deadlocks */
+		if (stripe(i) > stripe(j)) {
+			first = lock(j);
+			second = lock(i);
+		}
+		synchronized (first) {
+			synchronized (second) {
+				System.arraycopy(memory,3*j,memory,3*i,3);
+				written(i);
+			}
+		}
+	}
+
+	/* each run of cells inside a stripe block is copied under its lock */
+	public void readCells ( int index, int[] dst, int pos, int count )
+	{
+		if (count < 0 || count > CoreSize)
+			throw new IllegalArgumentException("can't read "+count+" cells");
+		int i = core.wrap(index);
+		while (count > 0) {
+			int n = Math.min(count,Math.min(STRIPESIZE-i%STRIPESIZE,CoreSize-i));
+			synchronized (lock(i)) {
+				System.arraycopy(memory,3*i,dst,pos,3*n);
+			}
+			pos += 3*n;
+			count -= n;
+			i = (i+n == CoreSize) ? 0 : i+n;
+		}
+	}
+
+	public void writeCells ( int index, int[] src, int pos, int count )
+	{
+		if (count < 0 || count > CoreSize)
+			throw new IllegalArgumentException("can't write "+count+" cells");
+		int i = core.wrap(index);
+		while (count > 0) {
+			int n = Math.min(count,Math.min(STRIPESIZE-i%STRIPESIZE,CoreSize-i));
+			synchronized (lock(i)) {
+				System.arraycopy(src,pos,memory,3*i,3*n);
+				if (cache != null)
+					cache.invalidate(i,n);
+			}
+			pos += 3*n;
+			count -= n;
+			i = (i+n == CoreSize) ? 0 : i+n;
+		}
+	}
+
+	public void saveCells ( IntBuffer dst )
+	{
+		for (int i=0; i<CoreSize; i+=STRIPESIZE)
+			synchronized (lock(i)) {
+				dst.put(memory,3*i,3*Math.min(STRIPESIZE,CoreSize-i));
+			}
+	}
+
+	public void loadCells ( IntBuffer src )
+	{
+		for (int i=0; i<CoreSize; i+=STRIPESIZE)
+			synchronized (lock(i)) {
+				src.get(memory,3*i,3*Math.min(STRIPESIZE,CoreSize-i));
+			}
+		if (cache != null)
+			cache.invalidateAll();
+	}
+
+	public void setDecodeCache ( MarsDecodeCache cache )
+	{
+		this.cache = cache;
+	}
+
+	public int predecode ( int index )
+	{
+		int i = core.wrap(index);
+		synchronized (lock(i)) {
+			return cache.fill(i,memory[3*i],memory[3*i+1],memory[3*i+2]);
+		}
+	}
+
+	/* empties the decode cache entry of the (wrapped) cell i; the lock
+	 * of the cell must be held */
+	private void written ( int i )
+	{
+		if (cache != null)
+			cache.invalidate(i);
+	}
+}
@@ -11,6 +11,11 @@ import java.util.LinkedList;
 
 public class MarsSyscallHandler
 {
+	/** Opening modes */
+	public static final int READ = 0;
+	public static final int WRITE = 1;
+	public static final int APPEND = 2;	// every write goes at the end of the file
+
 	int maxfiles;		// to avoid calling .getMaximumNumberOfFile() method each time we need it
 	FTElement[][] filetable;	// the file table, one for each process
 	MarsSystemConstant cons;
@@ -53,7 +58,7 @@ public class MarsSyscallHandler
 	 * OPEN: opens a file.
 	 * 
 	 * @param fileIndex the file's index in storage
-	 * @param mode 0: read-only; 1: read-write
+	 * @param mode READ: read-only; WRITE: read-write; APPEND: write at the end
 	 * @param PID the running process' ID
 	 * @param TID the calling thread's ID 
 	 * 
@@ -62,21 +67,22 @@ public class MarsSyscallHandler
 	 * @return -2 if the maximum open files number per warrior has already been reached
 	 * @return -3 if the file is already open in write mode
 	 */
-	public int open ( int fileIndex, boolean mode, int PID, int TID )
+	public int open ( int fileIndex, int opening, int PID, int TID )
 	{
+		boolean mode = ( opening!=READ );
 		boolean alreadyopen;
 		int freefd;
 		MarsFile file = storage.getMarsStorageFile(fileIndex);
+		if ( file == null ) {
+			System.out.println("Process " + PID + " trying to open a nonexisting file!");
+			return -1;
+		}
 		alreadyopen = file.getMarsFileIsOpen();
 		if ( ((freefd=getFirstFreeFD(PID))==-1) && (mode||(!alreadyopen)) ) {
 			System.out.println("Maximum number of open files reached for process " + PID + ".");
 			return -2;
 		}
-		if ( file.equals((MarsFile)null) ) {
-			System.out.println("Process " + PID + " trying to open a nonexisting file!");
-			return -1;
-		}
-		else if ( file.getMarsFileOwner() != PID )
+		if ( file.getMarsFileOwner() != PID )
 			throw new SecurityException("Process " + PID + " trying to open a file in which it does not belong!");
 		else if (!file.setMarsFileIsOpen(true,mode)) {
 			System.out.println("Process " + PID + " trying to open an already opened in write mode file!");
@@ -85,10 +91,14 @@ public class MarsSyscallHandler
 		if ( mode || (!alreadyopen) ) {	// it doesn't exist a valid fd for the file, yet
 			filetable[PID][freefd].fileIndex=fileIndex;
 			filetable[PID][freefd].filesize=file.getMarsFileSize();
-			if (mode)
+			if (mode) {
 				filetable[PID][freefd].writerID=TID;
-			else
+				filetable[PID][freefd].append=( opening==APPEND );
+			}
+			else {
 				filetable[PID][freefd].readersID.add(new Integer(TID));
+				filetable[PID][freefd].ahead=DMA.openReadAhead(PID,fileIndex,file.getMarsFileSize());
+			}
 			return freefd;
 		}
 		else {	// there is already an fd open for that file: let's use the same...
@@ -101,11 +111,53 @@ public class MarsSyscallHandler
 		}
 	}
 
+	/**
+	 * CREATE: creates a file of a single empty cell, owned by the calling
+	 * process, with the ID of a removed file if there is one.
+	 *
+	 * @param PID the running process' ID
+	 *
+	 * @return the file's index in storage
+	 */
+	public int create ( int PID )
+	{
+		return storage.addMarsStorageFile(new MarsFile(-1,PID));
+	}
+
+	/**
+	 * REMOVE: removes a file of the calling process, whose ID may then be
+	 * given to a new file.
+	 *
+	 * @param fileIndex the file's index in storage
+	 * @param PID the running process' ID
+	 *
+	 * @return 0 if the file has been removed
+	 * @return -1 if the file does not exist
+	 * @return -3 if the file is open, or the DMA is still working on it
+	 */
+	public int remove ( int fileIndex, int PID )
+	{
+		MarsFile file = storage.getMarsStorageFile(fileIndex);
+		if ( file == null ) {
+			System.out.println("Process " + PID + " trying to remove a nonexisting file!");
+			return -1;
+		}
+		else if ( file.getMarsFileOwner() != PID )
+			throw new SecurityException("Process " + PID + " trying to remove a file in which it does not belong!");
+		else if (!DMA.removeFile(fileIndex)) {
+			System.out.println("Process " + PID + " trying to remove a file in use!");
+			return -3;
+		}
+		return 0;
+	}
+
 	/**
 	 * Reads <CODE>size</CODE> cells from the file specified by <CODE>file</CODE>,
 	 * starting from the current position, placing
-	 * them in the memory address specified by <CODE>address</CODE>.
-	 * This syscall is BLOCKING.
+	 * them in the memory address specified by <CODE>address</CODE>,
+	 * and moves the current position past them.
+	 * This syscall is BLOCKING, but when the cells have already been
+	 * read ahead the thread is awakened at once.
 	 * 
 	 * @param fd the file descriptor that identifies the file where to read cells
 	 * @param address where to place read cells
@@ -127,20 +179,30 @@ public class MarsSyscallHandler
 		int fileIndex;
 		int offset;
 		int readcells = 0;
+		if (size<=0) {
+			System.out.println("read: attempt to read " + size + " cells.");
+			System.out.println("=====>>> KILLING calling thread...");
+			return -1;
+		}
 		fileIndex = filetable[PID][fd].fileIndex;
 		offset = filetable[PID][fd].currentPos;
-		if ( (offset+size)>filetable[PID][fd].filesize ) {
+		if ( size>(filetable[PID][fd].filesize-offset) ) {
 			System.out.println("read: attempt to read out of bounds.");
 			System.out.println("=====>>> KILLING calling thread...");
 			return -1;
 		}
-		DMA.read(fileIndex,offset,size,address);
+		if (!DMA.readAhead(filetable[PID][fd].ahead,offset,size,address))
+			DMA.read(fileIndex,offset,size,address);
+		filetable[PID][fd].currentPos+=size;
 		return size;
 	}
 
 	/** 
 	 * Writes <CODE>size</CODE> cells from memory address <CODE>address</CODE>
-	 * in the file identified by <CODE>fileID</CODE>.
+	 * in the file identified by <CODE>fileID</CODE>, at the current position
+	 * (at the end if the file has been opened in APPEND mode), and moves
+	 * the current position past them. The file grows if they go past
+	 * its end.
 	 * This syscall is BLOCKING.
 	 * 
 	 * @param fd the file descriptor that identifies the file where to write cells
@@ -163,9 +225,25 @@ public class MarsSyscallHandler
 		int fileIndex;
 		int offset;
 		int readcells = 0;
+		if (size<=0) {
+			System.out.println("write: attempt to write " + size + " cells.");
+			System.out.println("=====>>> KILLING calling thread...");
+			return -1;
+		}
 		fileIndex = filetable[PID][fd].fileIndex;
-		offset = filetable[PID][fd].currentPos;
+		if (filetable[PID][fd].append)
+			offset = filetable[PID][fd].filesize;
+		else
+			offset = filetable[PID][fd].currentPos;
+		if ( size>(MarsFile.MAXSIZE-offset) ) {
+			System.out.println("write: attempt to write past the maximum file size.");
+			System.out.println("=====>>> KILLING calling thread...");
+			return -1;
+		}
 		DMA.write(fileIndex,offset,size,address);
+		filetable[PID][fd].currentPos=offset+size;
+		if ( (offset+size)>filetable[PID][fd].filesize )
+			filetable[PID][fd].filesize=offset+size;
 		return size;
 	}
 
@@ -187,19 +265,22 @@ public class MarsSyscallHandler
 		int fileIndex;
 		fileIndex = filetable[PID][fd].fileIndex;
 		MarsFile file = storage.getMarsStorageFile(fileIndex);
-		if ( (filetable[PID][fd].writerID>0 ) ||	// file was open in write mode by only one thread OR
+		boolean writer = ( filetable[PID][fd].writerID==TID );
+		if ( !writer && !filetable[PID][fd].readersID.contains(new Integer(TID)) ) {
+			System.out.println("close: attempt to close a file in which thread doesn't belongs");
+			return -1;	//C. nota: chiamare eccezione? uccidere thread?
+		}
+		if ( writer ||	// file was open in write mode by only one thread OR
 				(filetable[PID][fd].readersID.size()==1)	// there's only a reader (the calling)
 		   ) {
-			if ( (filetable[PID][fd].writerID!=TID) || 
-				( !(filetable[PID][fd].readersID.get(1).equals(new Integer(TID))) )
-				) {
-				System.out.println("close: attempt to close a file in which thread doesn't belongs");
-				return -1;	//C. nota: chiamare eccezione? uccidere thread?
-			}
 			if (!file.setMarsFileIsClosed())
 				throw new RuntimeException("close: something went wrong...");
+			if (filetable[PID][fd].ahead!=null)
+				DMA.closeReadAhead(filetable[PID][fd].ahead);
+			filetable[PID][fd].ahead=null;
 			filetable[PID][fd].fileIndex=-1;
 			filetable[PID][fd].writerID=-1;
+			filetable[PID][fd].append=false;
 			filetable[PID][fd].currentPos=0;
 			filetable[PID][fd].filesize=0;
 			filetable[PID][fd].readersID=new LinkedList();
@@ -220,6 +301,8 @@ class FTElement
 	public LinkedList readersID;
 	public int currentPos;
 	public int filesize;
+	public MarsReadAhead ahead;	// null if the fd isn't read ahead
+	public boolean append;		// writes go at the end of the file
 
 	FTElement ( int newFileIndex )
 	{
@@ -17,6 +17,28 @@ public class MarsSystemConstant extends SystemConstant
 	private final int ProcessNum = 3;
 	private final int PriorityLevels = 5;
 
+	/* for the memory: it may differ from a battle to another */
+	private final int CoreSize;
+
+	public MarsSystemConstant()
+	{
+		CoreSize = super.getCoreSize();
+	}
+
+	/**
+	 * Constructor for a core of <CODE>coresize</CODE> cells.
+	 *
+	 * @param coresize the number of cells of the core
+	 * @throws IllegalArgumentException if coresize is not positive
+	 */
+	public MarsSystemConstant ( int coresize )
+	{
+		if (coresize <= 0)
+			throw new IllegalArgumentException("CoreSize must be positive");
+		CoreSize = coresize;
+	}
+
+	public int getCoreSize() {return CoreSize;}
 	public int getRegistersNum() {return RegistersNum;}
 	public int getInterruptNum() {return InterruptNum;}
 	public int getProcessNum() {return ProcessNum;}
@@ -0,0 +1,77 @@
+/**
+ *  This class is a timeout scheduled on the timer: when the simulated
+ *  time reaches its deadline the timer raises the interrupt
+ *  <CODE>irqn</CODE> on its handler, with the given data. It is also
+ *  the handle to cancel the timeout before it expires.
+ *  ----------------------------------------------------------------
+ *  @author Ciro Mattia Gonano <CODE>&lt;gonano@CS.UniBO.It&gt;</CODE>
+ *  @author Jacopo Saporetti <CODE>&lt;saporet3@CS.UniBO.It&gt;</CODE>
+ *  @author Mauro Seno <CODE>&lt;mseno@CS.UniBO.It&gt;</CODE>
+ *  ________________________________________________________________
+ */
+
+public class MarsTimeout
+{
+	/* links of the wheel's slot lists, owned by MarsTimerWheel */
+	MarsTimeout prev;
+	MarsTimeout next;
+	int slot;		/* the slot holding the timeout, or NOWHERE */
+	long deadline;	/* tick of expiry */
+	int delay;		/* ticks to wait, while the timeout is deferred */
+
+	static final int NOWHERE = -1;
+
+	private MarsTimer timer;
+	private InterruptHandler handler;
+	private int irqn;
+	private int data1;
+	private int data2;
+	private boolean cancelled;
+
+	MarsTimeout ( MarsTimer timer, int delay, InterruptHandler handler, int irqn, int data1, int data2 )
+	{
+		this.timer = timer;
+		this.delay = delay;
+		this.handler = handler;
+		this.irqn = irqn;
+		this.data1 = data1;
+		this.data2 = data2;
+		slot = NOWHERE;
+	}
+
+	/**
+	 * Cancels the timeout; nothing happens if it has already expired.
+	 */
+	public void cancel()
+	{
+		timer.cancel(this);
+	}
+
+	/**
+	 * Tells whether the timeout has been cancelled.
+	 */
+	public boolean isCancelled()
+	{
+		return cancelled;
+	}
+
+	/**
+	 * Returns the tick the timeout expires at.
+	 */
+	public long getDeadline()
+	{
+		return deadline;
+	}
+
+	/* called by the timer, with its lock held */
+	void setCancelled()
+	{
+		cancelled = true;
+	}
+
+	/* raises the interrupt; called by the timer without its lock */
+	void expire()
+	{
+		handler.interrupt(irqn,data1,data2);
+	}
+}
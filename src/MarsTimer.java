@@ -8,16 +8,38 @@
  */
 
 import java.util.ArrayList;
+import java.util.LinkedList;
 
 public class MarsTimer extends Thread implements Timer
 {
-	
+	/** Number of windows a pooled battle runs before yielding its carrier */
+	public static final int SLICE = 1024;
+
 	private int comptosynch;
-	private int tasktocomplete;
-	private int totalticks;
+	private int tasktocomplete;	/* components still running in the current window */
+	private int windows;		/* number of windows dispatched so far */
+	private int[] dispatched;	/* for each component, the last window it was ticked for */
+	private int[] completed;	/* for each component, the last window it has completed */
+	private boolean[] idleatstart;	/* for each component, was it idle when the window began? */
+	private MarsTimerWheel wheel;	/* the pending timeouts, keyed by tick */
+	private MarsTimeout quantum;	/* the timeout set by setTimeout() */
+	private LinkedList<MarsTimeout> deferred;	/* timeouts set during the current window */
+	private ArrayList<MarsTimeout> expired;	/* timeouts expired and not raised yet */
+	private boolean inwindow;	/* is a window being performed? */
+	private MarsScheduler scheduler;	/* tells when no thread can run */
+	private boolean idlewindow;	/* has the window been skipped over? */
+	private long idleticks;		/* ticks skipped with no runnable thread */
+	private int burst;		/* widest tick window, 1 for tick-by-tick execution */
+	private volatile int window;	/* width of the current tick window */
+	private int consumed;		/* ticks actually performed in the current window */
+	private int skipped;		/* ticks the component run inline has idled before its own */
+	private Object completion;	/* guards the fields above, and it's waited on by the timer */
+	private boolean inline;		/* are the TimerUsers driven on the timer's thread? */
 	private MarsInterruptHandler handler;
+	private MarsInterruptController controller;	/* drained at the end of each window */
 	private ArrayList timerusers;
-	private boolean dead;
+	private volatile boolean dead;
+	private boolean finished;	/* has a pooled battle ended? */
 	private boolean stopped;
 	private ArrayList stoppedtu;
 
@@ -28,33 +50,248 @@ public class MarsTimer extends Thread implements Timer
 		stoppedtu=new ArrayList();
 		stopped=false;
 		dead=false;
+		burst=1;
+		window=1;
+		windows=0;
+		dispatched=new int[0];
+		completed=new int[0];
+		idleatstart=new boolean[0];
+		completion=new Object();
+		wheel=new MarsTimerWheel();
+		deferred=new LinkedList<MarsTimeout>();
+		expired=new ArrayList<MarsTimeout>();
 	}
 
 	/**
 	 * Entry point for the thread.
 	 */
-	public synchronized void run()
+	public void run()
 	{
 		System.out.println("Starting timer...");
 		handler.interrupt(1,1,1);
-		while(!dead)
-		{
-			while (totalticks>0) {
-				tasktocomplete=comptosynch;
-				while (!stopped && totalticks>0) {
-					for (int i=0; i<comptosynch; i++)
-						if (stoppedtu.get(i).equals(new Boolean(false)))
-							((TimerUser)timerusers.get(i)).tick();
-					totalticks--;
-					while (tasktocomplete>0)
-						;
-					//System.out.println("Task completed for all the component to synchronize");
+		while (runSlice(Integer.MAX_VALUE))
+			;
+		System.out.println("Idle ticks skipped: "+idleticks);
+		System.out.println("Shutting down timer...");
+	}
+
+	/**
+	 * Performs up to <CODE>count</CODE> tick windows, raising the
+	 * interrupts of the timeouts as they expire.
+	 *
+	 * @param count the number of windows to perform
+	 * @return false if the timer has been shut down
+	 */
+	private boolean runSlice ( int count )
+	{
+		for (int n=0; n<count && !dead; n++) {
+			if (expire())
+				continue;
+			awaitRestart();
+			if (dead || stopped)
+				continue;
+			window=nextWindow();
+			synchronized (completion) {
+				windows++;
+				tasktocomplete=0;
+				for (int i=0; i<comptosynch; i++)
+					if (stoppedtu.get(i).equals(new Boolean(false))) {
+						dispatched[i]=windows;
+						tasktocomplete++;
+					}
+				consumed=window;
+				inwindow=true;
+			}
+			if (inline)
+				runWindow();
+			else {
+				for (int i=0; i<comptosynch; i++)
+					if (dispatched[i]==windows)
+						((TimerUser)timerusers.get(i)).tick();
+				awaitCompletion();
+			}
+			//System.out.println("Task completed for all the component to synchronize");
+			/* the interrupts posted in the window are delivered as
+			 * they would have been by the components themselves: the
+			 * timeouts they set are still deferred to the window's end */
+			if (controller != null)
+				controller.drain();
+			synchronized (completion) {
+				/* an interrupt may have ended the window early: the
+				 * time only moves on by the ticks actually performed */
+				inwindow=false;
+				if (idlewindow)
+					idleticks+=consumed;
+				wheel.advance(wheel.getTick()+consumed,expired);
+				/* the timeouts set during the window count from its end */
+				while (!deferred.isEmpty()) {
+					MarsTimeout t = deferred.removeFirst();
+					if (!t.isCancelled()) {
+						t.deadline = wheel.getTick()+t.delay;
+						wheel.add(t);
+					}
 				}
 			}
-			//System.out.println("Timeout expired for this Task");
-			handler.interrupt(1,1,1);
 		}
-		System.out.println("Shutting down timer...");
+		return !dead;
+	}
+
+	/**
+	 * Raises the interrupts of the expired timeouts.
+	 *
+	 * @return true if any timeout has expired
+	 */
+	private boolean expire()
+	{
+		Object[] due;
+		synchronized (completion) {
+			wheel.advance(wheel.getTick(),expired);
+			if (expired.isEmpty())
+				return false;
+			due = expired.toArray();
+			expired.clear();
+		}
+		for (int i=0; i<due.length && !dead; i++)
+			if (!((MarsTimeout)due[i]).isCancelled()) {
+				//System.out.println("Timeout expired for this Task");
+				((MarsTimeout)due[i]).expire();
+			}
+		return true;
+	}
+
+	/**
+	 * Runs the whole simulation on the calling thread, without starting
+	 * the timer, the processor and the DMA threads: every tick window is
+	 * performed by invoking <CODE>runTicks()</CODE> on each TimerUser in
+	 * the order they were added. No thread is involved, so a given input
+	 * always produces the same battle. Returns when the battle is over.
+	 *
+	 * @throws IllegalStateException if a TimerUser is not a BurstTimerUser
+	 */
+	public void runHeadless()
+	{
+		checkInline();
+		inline = true;
+		run();
+	}
+
+	/**
+	 * Runs the simulation on a pool of carrier threads shared with other
+	 * battles, and returns at once. As in <CODE>runHeadless()</CODE>
+	 * the TimerUsers are driven inline, but the battle only holds a
+	 * carrier for <CODE>SLICE</CODE> windows at a time, then it's queued
+	 * again behind the other battles. Use <CODE>awaitShutdown()</CODE>
+	 * to wait for its end.
+	 *
+	 * @param pool the carriers to run on
+	 * @throws IllegalStateException if a TimerUser is not a BurstTimerUser
+	 */
+	public void runPooled ( final MarsCarrierPool pool )
+	{
+		checkInline();
+		inline = true;
+		pool.submit(new Runnable() {
+			private boolean started = false;
+
+			public void run()
+			{
+				if (!started) {
+					started = true;
+					System.out.println("Starting timer...");
+					handler.interrupt(1,1,1);
+				}
+				boolean alive = false;
+				try {
+					alive = runSlice(SLICE);
+				}
+				finally {
+					if (alive)
+						pool.submit(this);
+					else {
+						System.out.println("Idle ticks skipped: "+idleticks);
+						System.out.println("Shutting down timer...");
+						synchronized (completion) {
+							finished=true;
+							completion.notifyAll();
+						}
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Waits for the end of a battle started by <CODE>runPooled()</CODE>.
+	 */
+	public void awaitShutdown() throws InterruptedException
+	{
+		synchronized (completion) {
+			while (!finished)
+				completion.wait();
+		}
+	}
+
+	/* the TimerUsers can be driven inline only through runTicks() */
+	private void checkInline()
+	{
+		for (int i=0; i<comptosynch; i++)
+			if (!(timerusers.get(i) instanceof BurstTimerUser))
+				throw new IllegalStateException("TimerUser "+i+" can't run inline");
+	}
+
+	/**
+	 * Performs the current window on the calling thread, giving the
+	 * same result as ticking one by one. A component only performs
+	 * the ticks the previous ones have performed. If it was idle and
+	 * a previous one has posted some work to it, that happened at the
+	 * last tick, since posting work traps: so the component idles up
+	 * to there and then performs just the last tick.
+	 */
+	private void runWindow()
+	{
+		for (int i=0; i<comptosynch; i++)
+			if (dispatched[i]==windows)
+				idleatstart[i]=((BurstTimerUser)timerusers.get(i)).isIdle();
+		for (int i=0; i<comptosynch; i++) {
+			if (dispatched[i]!=windows)
+				continue;
+			BurstTimerUser tu = (BurstTimerUser) timerusers.get(i);
+			if (idleatstart[i] && !tu.isIdle()) {
+				tu.idleTicks(consumed-1);
+				skipped=consumed-1;
+				tu.runTicks(1);
+				skipped=0;
+				tickCompleted(i,consumed);
+			}
+			else
+				tickCompleted(i,tu.runTicks(consumed));
+		}
+	}
+
+	/**
+	 * Sleeps until every component ticked for the current window has
+	 * completed it, or the timer is shut down.
+	 */
+	private void awaitCompletion()
+	{
+		synchronized (completion) {
+			while (tasktocomplete>0 && !dead)
+				try { completion.wait();
+				} catch (InterruptedException e) {}
+		}
+	}
+
+	/**
+	 * Sleeps while the timer is stopped. When headless nobody else
+	 * could restart it, so it doesn't wait.
+	 */
+	private void awaitRestart()
+	{
+		synchronized (completion) {
+			while (stopped && !dead && !inline)
+				try { completion.wait();
+				} catch (InterruptedException e) {}
+		}
 	}
 
 	/**
@@ -65,10 +302,218 @@ public class MarsTimer extends Thread implements Timer
 	 */
 	public void setTimeout ( int ticks, InterruptHandler ehandler )
 	{
-		totalticks = ticks;
+		synchronized (completion) {
+			/* there's only one such timeout: the new one replaces it */
+			if (quantum != null)
+				cancel(quantum);
+			quantum = schedule(ticks,ehandler,1,1,1);
+		}
 		handler = (MarsInterruptHandler) ehandler; //C. questo dovrebbe essere sempre interrupt 1, se non vado errato...
 	}
 
+	/**
+	 * Cancels the timeout set by <CODE>setTimeout()</CODE>, if any: while
+	 * the processor is idle there's no quantum to count, and the timer
+	 * may skip to the next DMA completion.
+	 */
+	public void cancelTimeout()
+	{
+		synchronized (completion) {
+			if (quantum != null)
+				cancel(quantum);
+			quantum = null;
+		}
+	}
+
+	/**
+	 * Schedules a timeout that will raise the interrupt
+	 * <CODE>irqn</CODE> on <CODE>ehandler</CODE> after the specified
+	 * number of ticks. Any number of timeouts can be pending at once.
+	 * A timeout scheduled while a tick window is being performed
+	 * counts from the end of the window.
+	 *
+	 * @param ticks the ticks before the expiry
+	 * @param ehandler the interrupt handler to awake
+	 * @param irqn the interrupt request number
+	 * @param data1 the first datum of the interrupt
+	 * @param data2 the second datum of the interrupt
+	 * @return the handle to cancel the timeout
+	 */
+	public MarsTimeout schedule ( int ticks, InterruptHandler ehandler, int irqn, int data1, int data2 )
+	{
+		if (ticks < 0)
+			throw new IllegalArgumentException("negative timeout");
+		MarsTimeout t = new MarsTimeout(this,ticks,ehandler,irqn,data1,data2);
+		synchronized (completion) {
+			if (inwindow)
+				deferred.addLast(t);
+			else {
+				t.deadline = wheel.getTick()+ticks;
+				wheel.add(t);
+			}
+		}
+		return t;
+	}
+
+	/**
+	 * Cancels a timeout; nothing happens if it has already expired.
+	 *
+	 * @param t the timeout returned by <CODE>schedule()</CODE>
+	 */
+	public void cancel ( MarsTimeout t )
+	{
+		synchronized (completion) {
+			t.setCancelled();
+			/* a deferred timeout is just dropped when the window ends */
+			wheel.remove(t);
+		}
+	}
+
+	/**
+	 * Sets the interrupt controller the components post to: the timer
+	 * delivers the interrupts still pending at the end of each window.
+	 *
+	 * @param controller the controller to drain
+	 */
+	public void setInterruptController ( MarsInterruptController controller )
+	{
+		this.controller = controller;
+	}
+
+	/**
+	 * Returns the number of ticks elapsed since the timer was created.
+	 *
+	 * @return the current tick
+	 */
+	public long getCurrentTick()
+	{
+		synchronized (completion) {
+			return wheel.getTick();
+		}
+	}
+
+	/**
+	 * Returns the tick from which the calling component performs its
+	 * ticks in the current window: the current tick, or the last one of
+	 * the window for a component that has idled up to there.
+	 *
+	 * @return the first tick of the component
+	 */
+	public long getWindowStart()
+	{
+		synchronized (completion) {
+			return wheel.getTick()+skipped;
+		}
+	}
+
+	/**
+	 * Sets the widest tick window: with a value greater than 1, the
+	 * processor executes up to that many instructions for each tick
+	 * handshake, as long as no other component has pending work.
+	 *
+	 * @param ticks the widest window, 1 for tick-by-tick execution
+	 */
+	public void setBurstLength ( int ticks )
+	{
+		if (ticks < 1)
+			throw new IllegalArgumentException("burst length must be positive");
+		burst = ticks;
+	}
+
+	/**
+	 * Enables tickless operation: whenever the scheduler has no
+	 * runnable thread, the processor has nothing to do, so instead of
+	 * ticking it the timer lets the DMA run up to its next completion,
+	 * or skips straight to the next timeout if the DMA is idle too.
+	 *
+	 * @param scheduler the scheduler to ask for runnable threads
+	 */
+	public void setScheduler ( MarsScheduler scheduler )
+	{
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * Returns the number of ticks skipped because no thread could run.
+	 *
+	 * @return the idle ticks
+	 */
+	public long getIdleTicks()
+	{
+		synchronized (completion) {
+			return idleticks;
+		}
+	}
+
+	/**
+	 * Returns the width of the current tick window, i.e. the number
+	 * of ticks each TimerUser may perform before completing.
+	 *
+	 * @return the number of ticks in the window
+	 */
+	public int getTickWindow()
+	{
+		return window;
+	}
+
+	/**
+	 * Computes the width of the next tick window. Ticks are handed out
+	 * one at a time unless burst is enabled and at most one of the
+	 * running components is busy: then it can't be interleaved with
+	 * anything else, and runs until the next timeout or an interrupt.
+	 * When tickless and no thread can run, the window always reaches
+	 * the next timeout: the DMA ends it early when it completes a
+	 * request, waking up a thread.
+	 */
+	private int nextWindow()
+	{
+		boolean tickless = ( scheduler != null && !scheduler.hasRunnableThread() );
+		idlewindow = false;
+		if (burst <= 1 && !tickless)
+			return 1;
+		int busy = 0;
+		for (int i=0; i<comptosynch; i++) {
+			if (Boolean.TRUE.equals(stoppedtu.get(i)))
+				continue;
+			Object tu = timerusers.get(i);
+			if (!(tu instanceof BurstTimerUser))
+				return 1;
+			if (!((BurstTimerUser)tu).isIdle())
+				busy++;
+		}
+		if (busy > 1)
+			return 1;
+		long left;
+		synchronized (completion) {
+			left = wheel.nextDeadline()-wheel.getTick();
+		}
+		if (left < 1)
+			return 1;
+		if (tickless) {
+			idlewindow = true;
+			return ( left < Integer.MAX_VALUE ? (int)left : Integer.MAX_VALUE );
+		}
+		return ( burst < left ? burst : (int)left );
+	}
+
+	/**
+	 * Returns the number of ticks left before the timeout set by
+	 * <CODE>setTimeout()</CODE> expires.
+	 *
+	 * @return the remaining ticks
+	 */
+	public int getRemainingTicks()
+	{
+		synchronized (completion) {
+			if (quantum == null || quantum.isCancelled())
+				return 0;
+			if (deferred.contains(quantum))
+				return quantum.delay;
+			long left = quantum.deadline-wheel.getTick();
+			return ( left > 0 ? (int)left : 0 );
+		}
+	}
+
 	/**
 	 * Notify the timer that the specified component has completed
 	 * its task for the current tick.
@@ -77,7 +522,32 @@ public class MarsTimer extends Thread implements Timer
 	 */
 	public void tickCompleted ( int component )
 	{
-		tasktocomplete--;
+		tickCompleted(component,window);
+	}
+
+	/**
+	 * Notify the timer that the specified component has completed
+	 * its task for the current window, after performing
+	 * <CODE>ticks</CODE> ticks of it. A component that wasn't ticked
+	 * for the current window, or that has already completed it, is
+	 * ignored, so a late or repeated notification can't release
+	 * the next window.
+	 *
+	 * @param component the id of the component that has completed the task
+	 * @param ticks the number of ticks performed
+	 */
+	public void tickCompleted ( int component, int ticks )
+	{
+		synchronized (completion) {
+			if (component<0 || component>=comptosynch ||
+					dispatched[component]!=windows || completed[component]==windows)
+				return;
+			completed[component]=windows;
+			if (ticks < consumed)
+				consumed = ticks;
+			if (--tasktocomplete == 0)
+				completion.notifyAll();
+		}
 	}
 
 	/**
@@ -89,9 +559,18 @@ public class MarsTimer extends Thread implements Timer
 	 */
 	public int addTimerUser ( TimerUser tu )
 	{
-		timerusers.add(tu);
-		stoppedtu.add(new Boolean(false));
-		comptosynch++;
+		synchronized (completion) {
+			timerusers.add(tu);
+			stoppedtu.add(new Boolean(false));
+			comptosynch++;
+			int[] d = new int[comptosynch];
+			int[] c = new int[comptosynch];
+			System.arraycopy(dispatched,0,d,0,comptosynch-1);
+			System.arraycopy(completed,0,c,0,comptosynch-1);
+			dispatched=d;
+			completed=c;
+			idleatstart=new boolean[comptosynch];
+		}
 		return (timerusers.size()-1);
 	}
 
@@ -100,7 +579,9 @@ public class MarsTimer extends Thread implements Timer
 	 */
 	public void stopTimer()
 	{
-		stopped=true;
+		synchronized (completion) {
+			stopped=true;
+		}
 	}
 
 	/**
@@ -108,7 +589,10 @@ public class MarsTimer extends Thread implements Timer
 	 */
 	public void restartTimer()
 	{
-		stopped=false;
+		synchronized (completion) {
+			stopped=false;
+			completion.notifyAll();
+		}
 	}
 
 	/**
@@ -116,9 +600,11 @@ public class MarsTimer extends Thread implements Timer
 	 *
 	 * @param tuID the timer user's ID
 	 */
-	public synchronized void stopTimerUser ( int tuID )
+	public void stopTimerUser ( int tuID )
 	{
-		stoppedtu.set(tuID,new Boolean(true));
+		synchronized (completion) {
+			stoppedtu.set(tuID,new Boolean(true));
+		}
 	}
 
 	/**
@@ -126,9 +612,11 @@ public class MarsTimer extends Thread implements Timer
 	 *
 	 * @param tuID the timer user's ID
 	 */
-	public synchronized void restartTimerUser ( int tuID )
+	public void restartTimerUser ( int tuID )
 	{
-		stoppedtu.set(tuID,new Boolean(false));
+		synchronized (completion) {
+			stoppedtu.set(tuID,new Boolean(false));
+		}
 	}
 
 	/**
@@ -140,7 +628,10 @@ public class MarsTimer extends Thread implements Timer
 			((TimerUser)timerusers.get(i)).die();
 		for (int i=0; i<comptosynch; i++)
 			((TimerUser)timerusers.get(i)).tick();
-		dead=true;
-		stopped=false;
+		synchronized (completion) {
+			dead=true;
+			stopped=false;
+			completion.notifyAll();
+		}
 	}
 }
@@ -0,0 +1,217 @@
+/**
+ *  This class is a hierarchical timing wheel holding the timeouts of
+ *  the timer. Each of the <CODE>LEVELS</CODE> levels has
+ *  <CODE>SLOTS</CODE> slots: a slot of level 0 holds the timeouts of a
+ *  single tick, a slot of level L those of 256^L ticks, and it's
+ *  cascaded to the level below when the time enters its range.
+ *  Every slot is a doubly linked list, so a timeout is inserted and
+ *  cancelled in constant time, and advancing by a tick only looks at
+ *  one slot. The wheel isn't synchronized: the timer guards it.
+ *  ----------------------------------------------------------------
+ *  @author Ciro Mattia Gonano <CODE>&lt;gonano@CS.UniBO.It&gt;</CODE>
+ *  @author Jacopo Saporetti <CODE>&lt;saporet3@CS.UniBO.It&gt;</CODE>
+ *  @author Mauro Seno <CODE>&lt;mseno@CS.UniBO.It&gt;</CODE>
+ *  ________________________________________________________________
+ */
+
+import java.util.ArrayList;
+
+public class MarsTimerWheel
+{
+	public static final int LEVELS = 4;
+	public static final int BITS = 8;
+	public static final int SLOTS = 1<<BITS;
+	private static final int MASK = SLOTS-1;
+
+	/* the list of timeouts already due, after the slots */
+	private static final int DUE = LEVELS*SLOTS;
+
+	private MarsTimeout[] heads;
+	private MarsTimeout[] tails;
+	private long now;
+	private int count;
+	private long earliest;		/* cached deadline of the first timeout */
+	private boolean known;		/* is earliest up to date? */
+
+	/**
+	 * Constructor: an empty wheel at tick 0.
+	 */
+	public MarsTimerWheel()
+	{
+		heads = new MarsTimeout[DUE+1];
+		tails = new MarsTimeout[DUE+1];
+		now = 0;
+		count = 0;
+		known = true;
+		earliest = Long.MAX_VALUE;
+	}
+
+	/**
+	 * Returns the current tick of the wheel.
+	 */
+	public long getTick()
+	{
+		return now;
+	}
+
+	/**
+	 * Returns the number of timeouts in the wheel.
+	 */
+	public int size()
+	{
+		return count;
+	}
+
+	/**
+	 * Inserts a timeout, expiring at <CODE>t.deadline</CODE>.
+	 */
+	public void add ( MarsTimeout t )
+	{
+		link(t,slotOf(t.deadline));
+		count++;
+		if (known && t.deadline < earliest)
+			earliest = t.deadline;
+	}
+
+	/**
+	 * Removes a timeout, if it's in the wheel.
+	 */
+	public void remove ( MarsTimeout t )
+	{
+		if (t.slot == MarsTimeout.NOWHERE)
+			return;
+		unlink(t);
+		count--;
+		if (t.deadline == earliest)
+			known = false;
+	}
+
+	/**
+	 * Advances the wheel up to the tick <CODE>tick</CODE>, and moves
+	 * into <CODE>expired</CODE> the timeouts whose deadline has been
+	 * reached, in order of deadline.
+	 *
+	 * @param tick the new current tick
+	 * @param expired the list the expired timeouts are appended to
+	 */
+	public void advance ( long tick, ArrayList<MarsTimeout> expired )
+	{
+		drain(DUE,expired);
+		while (now < tick) {
+			if (count == 0) {
+				now = tick;
+				break;
+			}
+			now++;
+			/* cascade the higher levels first, so that a timeout can
+			 * fall down more than one level at once */
+			for (int level=LEVELS-1; level>0; level--)
+				if ((now & ((1L<<(BITS*level))-1)) == 0)
+					cascade(level);
+			drain((int)(now & MASK),expired);
+			/* a cascaded timeout may be due right now */
+			drain(DUE,expired);
+		}
+		if (!expired.isEmpty())
+			known = false;
+	}
+
+	/**
+	 * Returns the deadline of the first timeout to expire, or
+	 * <CODE>Long.MAX_VALUE</CODE> if the wheel is empty.
+	 */
+	public long nextDeadline()
+	{
+		if (known)
+			return earliest;
+		earliest = Long.MAX_VALUE;
+		if (heads[DUE] != null)
+			earliest = now;
+		else if (count > 0)
+			for (int level=0; level<LEVELS; level++) {
+				/* slots of a level are in time order starting
+				 * from the one after the current */
+				long base = now>>(BITS*level);
+				for (int i=1; i<=SLOTS; i++) {
+					MarsTimeout t = heads[level*SLOTS+(int)((base+i) & MASK)];
+					if (t == null)
+						continue;
+					for (; t!=null; t=t.next)
+						if (t.deadline < earliest)
+							earliest = t.deadline;
+					break;
+				}
+			}
+		known = true;
+		return earliest;
+	}
+
+	/* the slot a deadline belongs to, seen from the current tick */
+	private int slotOf ( long deadline )
+	{
+		long delta = deadline-now;
+		if (delta <= 0)
+			return DUE;
+		for (int level=0; level<LEVELS-1; level++)
+			if (delta < (1L<<(BITS*(level+1))))
+				return level*SLOTS+(int)((deadline>>(BITS*level)) & MASK);
+		return (LEVELS-1)*SLOTS+(int)((deadline>>(BITS*(LEVELS-1))) & MASK);
+	}
+
+	/* moves the timeouts of the current slot of a level to the lower levels */
+	private void cascade ( int level )
+	{
+		int s = level*SLOTS+(int)((now>>(BITS*level)) & MASK);
+		MarsTimeout t = heads[s];
+		heads[s] = tails[s] = null;
+		while (t != null) {
+			MarsTimeout next = t.next;
+			t.prev = t.next = null;
+			link(t,slotOf(t.deadline));
+			t = next;
+		}
+	}
+
+	/* empties a slot into expired */
+	private void drain ( int s, ArrayList<MarsTimeout> expired )
+	{
+		MarsTimeout t = heads[s];
+		heads[s] = tails[s] = null;
+		while (t != null) {
+			MarsTimeout next = t.next;
+			t.prev = t.next = null;
+			t.slot = MarsTimeout.NOWHERE;
+			count--;
+			expired.add(t);
+			t = next;
+		}
+	}
+
+	/* appends t to the slot s */
+	private void link ( MarsTimeout t, int s )
+	{
+		t.slot = s;
+		t.prev = tails[s];
+		t.next = null;
+		if (tails[s] == null)
+			heads[s] = t;
+		else
+			tails[s].next = t;
+		tails[s] = t;
+	}
+
+	private void unlink ( MarsTimeout t )
+	{
+		int s = t.slot;
+		if (t.prev == null)
+			heads[s] = t.next;
+		else
+			t.prev.next = t.next;
+		if (t.next == null)
+			tails[s] = t.prev;
+		else
+			t.next.prev = t.prev;
+		t.prev = t.next = null;
+		t.slot = MarsTimeout.NOWHERE;
+	}
+}
@@ -0,0 +1,126 @@
+/**
+ *  This interface extends "Memory" with primitive accessors to the
+ *  fields of a cell, so that the processor and the DMA can read and
+ *  write the core without building or sharing <CODE>Cell</CODE>
+ *  objects. As for "Memory", indexes exceeding the memory bounds
+ *  are wrapped around.
+ *  ------------------------------------------------------------------
+ *  @author Ciro Mattia Gonano <CODE>&lt;gonano@CS.UniBO.It&gt;</CODE>
+ *  @author Jacopo Saporetti <CODE>&lt;saporet3@CS.UniBO.It&gt;</CODE>
+ *  @author Mauro Seno <CODE>&lt;mseno@CS.UniBO.It&gt;</CODE>
+ *  __________________________________________________________________
+ */
+
+import java.nio.IntBuffer;
+
+public interface PrimitiveMemory extends Memory
+{
+	/**
+	 * Returns the number of cells in the memory.
+	 */
+	public int getCoreSize();
+
+	/**
+	 * Reads the opcode of the cell pointed by <CODE>index</CODE>.
+	 * @param index specifies the cell wanted
+	 * @return the opcode stored in the cell
+	 */
+	public int readOpcode ( int index );
+
+	/**
+	 * Reads the first operand of the cell pointed by <CODE>index</CODE>.
+	 * @param index specifies the cell wanted
+	 * @return the operand A stored in the cell
+	 */
+	public int readOperandA ( int index );
+
+	/**
+	 * Reads the second operand of the cell pointed by <CODE>index</CODE>.
+	 * @param index specifies the cell wanted
+	 * @return the operand B stored in the cell
+	 */
+	public int readOperandB ( int index );
+
+	/**
+	 * Changes the first operand of the cell pointed by <CODE>index</CODE>.
+	 * @param index specifies the cell to be changed
+	 * @param val the new value of the operand A
+	 */
+	public void writeOperandA ( int index, int val );
+
+	/**
+	 * Changes the second operand of the cell pointed by <CODE>index</CODE>.
+	 * @param index specifies the cell to be changed
+	 * @param val the new value of the operand B
+	 */
+	public void writeOperandB ( int index, int val );
+
+	/**
+	 * Writes the whole cell pointed by <CODE>index</CODE>.
+	 * @param index specifies the cell to be written
+	 * @param opcode the new opcode
+	 * @param a the new operand A
+	 * @param b the new operand B
+	 */
+	public void writeCell ( int index, int opcode, int a, int b );
+
+	/**
+	 * Copies the cell pointed by <CODE>from</CODE> over the cell
+	 * pointed by <CODE>to</CODE>.
+	 * @param to the index of the destination cell
+	 * @param from the index of the source cell
+	 */
+	public void copyCell ( int to, int from );
+
+	/**
+	 * Copies <CODE>count</CODE> consecutive cells, from the one pointed
+	 * by <CODE>index</CODE> on, in <CODE>dst</CODE> starting from the
+	 * int <CODE>pos</CODE>, three ints per cell. The cells wrap around
+	 * the end of the core, so the copy takes at most two block moves.
+	 * @param index specifies the first cell to be read
+	 * @param dst where to store <CODE>3*count</CODE> ints
+	 * @param pos the position of the first int in <CODE>dst</CODE>
+	 * @param count the number of cells, at most <CODE>getCoreSize()</CODE>
+	 */
+	public void readCells ( int index, int[] dst, int pos, int count );
+
+	/**
+	 * Overwrites <CODE>count</CODE> consecutive cells, from the one
+	 * pointed by <CODE>index</CODE> on, with the cells packed in
+	 * <CODE>src</CODE> as in <CODE>readCells()</CODE>.
+	 * @param index specifies the first cell to be written
+	 * @param src where to read <CODE>3*count</CODE> ints
+	 * @param pos the position of the first int in <CODE>src</CODE>
+	 * @param count the number of cells, at most <CODE>getCoreSize()</CODE>
+	 */
+	public void writeCells ( int index, int[] src, int pos, int count );
+
+	/**
+	 * Attaches the decode cache of the processor. From now on, every
+	 * write of a cell empties its entry in the cache.
+	 * @param cache the decode cache
+	 */
+	public void setDecodeCache ( MarsDecodeCache cache );
+
+	/**
+	 * Decodes the cell pointed by <CODE>index</CODE> into the attached
+	 * decode cache.
+	 * @param index specifies the cell to be decoded
+	 * @return the handler of the cell
+	 */
+	public int predecode ( int index );
+
+	/**
+	 * Copies the whole memory in <CODE>dst</CODE>, three ints per cell
+	 * (opcode, operand A, operand B), starting from cell 0.
+	 * @param dst the buffer where to store <CODE>3*getCoreSize()</CODE> ints
+	 */
+	public void saveCells ( IntBuffer dst );
+
+	/**
+	 * Overwrites the whole memory with the cells stored in <CODE>src</CODE>
+	 * by <CODE>saveCells()</CODE>.
+	 * @param src the buffer where to read <CODE>3*getCoreSize()</CODE> ints
+	 */
+	public void loadCells ( IntBuffer src );
+}
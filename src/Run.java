@@ -12,70 +12,296 @@ public class Run
 {
 	public static void main(String[] args)
 	{
+		/* parse command line options */
+		String memtype = "packed";
+		String checkpoint = null;
+		String restore = null;
+		boolean burst = false;
+		boolean headless = false;
+		boolean pooled = false;
+		int dmachannels = 1;
+		int dmaaffinity = MarsDMA.AFFINITY_PROCESS;
+		int dmaburst = new SystemConstant().getMaxReadWrite();
+		int coresize = new SystemConstant().getCoreSize();
+		String dmapolicy = "fifo";
+		boolean dmastats = false;
+		String storagedir = null;
+		boolean mapped = false;
+		int cacheblocks = 0;
+		int readahead = 0;
+		int journal = 0;
+		for (int i=0; i<args.length; i++) {
+			if (args[i].startsWith("-memory=")) {
+				memtype = args[i].substring(8);
+				if (!memtype.equals("object") && !memtype.equals("packed")
+						&& !memtype.equals("direct") && !memtype.equals("striped")) {
+					usage();
+					return;
+				}
+			}
+			else if (args[i].startsWith("-checkpoint="))
+				checkpoint = args[i].substring(12);
+			else if (args[i].startsWith("-restore="))
+				restore = args[i].substring(9);
+			else if (args[i].equals("-burst"))
+				burst = true;
+			else if (args[i].equals("-headless"))
+				headless = true;
+			else if (args[i].equals("-pooled"))
+				pooled = true;
+			else if (args[i].startsWith("-dmachannels=")) {
+				try { dmachannels = Integer.parseInt(args[i].substring(13));
+				} catch (NumberFormatException e) {
+					usage();
+					return;
+				}
+			}
+			else if (args[i].startsWith("-dmaburst=")) {
+				try { dmaburst = Integer.parseInt(args[i].substring(10));
+				} catch (NumberFormatException e) {
+					usage();
+					return;
+				}
+			}
+			else if (args[i].startsWith("-storage="))
+				storagedir = args[i].substring(9);
+			else if (args[i].equals("-mapped"))
+				mapped = true;
+			else if (args[i].startsWith("-readahead=")) {
+				try { readahead = Integer.parseInt(args[i].substring(11));
+				} catch (NumberFormatException e) {
+					usage();
+					return;
+				}
+			}
+			else if (args[i].startsWith("-journal=")) {
+				try { journal = Integer.parseInt(args[i].substring(9));
+				} catch (NumberFormatException e) {
+					usage();
+					return;
+				}
+			}
+			else if (args[i].startsWith("-cache=")) {
+				try { cacheblocks = Integer.parseInt(args[i].substring(7));
+				} catch (NumberFormatException e) {
+					usage();
+					return;
+				}
+			}
+			else if (args[i].startsWith("-dmapolicy=")) {
+				dmapolicy = args[i].substring(11);
+				dmastats = true;
+			}
+			else if (args[i].equals("-dmaaffinity=process"))
+				dmaaffinity = MarsDMA.AFFINITY_PROCESS;
+			else if (args[i].equals("-dmaaffinity=file"))
+				dmaaffinity = MarsDMA.AFFINITY_FILE;
+			else if (args[i].startsWith("-coresize=")) {
+				try { coresize = Integer.parseInt(args[i].substring(10));
+				} catch (NumberFormatException e) {
+					usage();
+					return;
+				}
+			}
+			else {
+				usage();
+				return;
+			}
+		}
+
 		/* load constants/variables */
-		MarsSystemConstant constants = new MarsSystemConstant();
+		MarsSystemConstant constants;
+		try { constants = new MarsSystemConstant(coresize);
+		} catch (IllegalArgumentException e) {
+			usage();
+			return;
+		}
 
 		/* init memory, storage and syscalls for the storage */
-		MarsMemory memory = new MarsMemory();
-		MarsStorage storage = new MarsStorage();
+		PrimitiveMemory memory = createMemory(memtype,constants);
+		MarsStorage storage;
+		if (storagedir == null) {
+			if (journal > 0) {
+				usage();
+				return;
+			}
+			storage = new MarsStorage();
+		}
+		else
+			try { storage = new MarsDiskStorage(new java.io.File(storagedir),mapped,journal);
+			} catch (java.io.IOException e) {
+				System.out.println("Can't open storage: "+e.getMessage());
+				return;
+			}
 		putWarriorsInStorage(storage);
 
 		/* now, init processor, timer, DMA, and then scheduler and handlers */
 		MarsTimer timer = new MarsTimer();
 		MarsProcessor processor = new MarsProcessor(memory,constants,timer);
 		MarsScheduler scheduler = new MarsScheduler(constants,processor,timer);
-		MarsDMA DMA = new MarsDMA(processor,memory,storage,timer,scheduler);
+		MarsDMA DMA;
+		try { DMA = new MarsDMA(processor,memory,storage,timer,scheduler,dmachannels,dmaaffinity,dmaburst);
+			DMA.setPolicy(dmapolicy);
+			if (cacheblocks > 0)
+				DMA.setCache(cacheblocks);
+			if (readahead > 0)
+				DMA.setReadAhead(readahead);
+			if (journal > 0)
+				DMA.setJournal(((MarsDiskStorage)storage).getJournal());
+		} catch (IllegalArgumentException e) {
+			usage();
+			return;
+		}
 		MarsSyscallHandler syscalls = new MarsSyscallHandler(DMA,scheduler,storage);
 		MarsInterruptHandler inthandler = new MarsInterruptHandler(processor,DMA,syscalls,scheduler,timer);
 
-		/* ..then, add a thread for each process, and load its warrior */
+		/* ..then, add a thread for each process, and load its warrior,
+		 * or take the whole bootstrapped state from a checkpoint */
+		int ticks = constants.getQuantum();
 		int curPC;
-		/*
-		 * A solution like this one:
-		 * 
-		for (int i=0; i<constants.getProcessNum(); i++) {
-			System.out.println("Bootstrapping warrior "+i);
-			scheduler.setCurProc(i);
-			scheduler.addThread(2,0+(curPC=(i*constants.getMinimumSeparation())));
-			MarsCell[] tmp = (storage.getMarsStorageFile(i)).getMarsFileContent();
+		if (restore != null) {
+			System.out.println("Restoring checkpoint "+restore);
+			try { ticks = MarsCheckpoint.restore(restore,memory,processor,scheduler,DMA);
+			} catch (java.io.IOException e) {
+				System.out.println("Can't restore checkpoint: "+e.getMessage());
+				return;
+			}
 		}
-		 *
-		 * would had offered much more scalability and universality.
-		 * Because the bootstrap protocol is not the main purpose of this
-		 * project, we choosed for the solution below, that's strictly bound
-		 * to constants defined at compile-time.
-		 */
-		for (int i=0; i<constants.getProcessNum(); i++) {
-			System.out.println("Bootstrapping warrior "+i);
-			scheduler.setCurProc(i);
-			scheduler.addThread(2,0+(curPC=(i*constants.getMinimumSeparation())));
-			System.out.println("curPC is now "+curPC);
-			switch (i)
-			{
-				case 0:
-					new datamon(memory,curPC);
-					break;
-				case 1:
-					new devimon(memory,curPC);
-					break;
-				case 2:
-					new angemon(memory,curPC);
-					break;
+		else {
+			/*
+			 * A solution like this one:
+			 * 
+			for (int i=0; i<constants.getProcessNum(); i++) {
+				System.out.println("Bootstrapping warrior "+i);
+				scheduler.setCurProc(i);
+				scheduler.addThread(2,0+(curPC=(i*constants.getMinimumSeparation())));
+				MarsCell[] tmp = (storage.getMarsStorageFile(i)).getMarsFileContent();
+			}
+			 *
+			 * would had offered much more scalability and universality.
+			 * Because the bootstrap protocol is not the main purpose of this
+			 * project, we choosed for the solution below, that's strictly bound
+			 * to constants defined at compile-time.
+			 */
+			for (int i=0; i<constants.getProcessNum(); i++) {
+				System.out.println("Bootstrapping warrior "+i);
+				scheduler.setCurProc(i);
+				scheduler.addThread(2,0+(curPC=(i*constants.getMinimumSeparation())));
+				System.out.println("curPC is now "+curPC);
+				switch (i)
+				{
+					case 0:
+						new datamon(memory,curPC);
+						break;
+					case 1:
+						new devimon(memory,curPC);
+						break;
+					case 2:
+						new angemon(memory,curPC);
+						break;
+				}
 			}
+			processor.setPC(0);
 		}
+		/* the devices post their interrupts to the controller: every
+		 * thread waits for at most a DMA completion */
+		MarsInterruptController controller = new MarsInterruptController(inthandler,
+				constants.getProcessNum()*constants.getMaximumNumberOfTask()+constants.getInterruptNum());
 		/* setup the processor... */
-		processor.setPC(0);
 		for (int i=0; i<constants.getInterruptNum(); i++)
-			processor.setInterruptHandler(i,inthandler);
+			processor.setInterruptHandler(i,controller);
+		processor.setInterruptController(controller);
 		/* ..the timer... */
-		timer.setTimeout(constants.getQuantum(), inthandler);
+		timer.setTimeout(ticks, inthandler);
+		timer.setScheduler(scheduler);
+		timer.setInterruptController(controller);
+		if (burst)
+			timer.setBurstLength(constants.getQuantum());
 		/* ..and the DMA. */
-		DMA.setInterruptHandler(3,inthandler);
+		DMA.setInterruptHandler(3,controller);
+
+		if (checkpoint != null) {
+			System.out.println("Saving checkpoint "+checkpoint);
+			try { MarsCheckpoint.save(checkpoint,memory,processor,scheduler,DMA,timer);
+			} catch (java.io.IOException e) {
+				System.out.println("Can't save checkpoint: "+e.getMessage());
+			}
+		}
 
 		/* Well, all ready, let's start the dances */
-		processor.start();
-		DMA.start();
-		timer.start();
+		if (headless)
+			timer.runHeadless();
+		else if (pooled) {
+			/* the carriers could be shared by any number of battles */
+			MarsCarrierPool carriers = new MarsCarrierPool(Runtime.getRuntime().availableProcessors());
+			timer.runPooled(carriers);
+			try { timer.awaitShutdown();
+			} catch (InterruptedException e) {}
+			carriers.shutdown();
+		}
+		else {
+			processor.start();
+			DMA.start();
+			timer.start();
+
+			/* wait for the end of the battle */
+			try {
+				timer.join();
+				processor.join();
+				DMA.join();
+			} catch (InterruptedException e) {}
+		}
+		if (dmastats)
+			DMA.getStats().print();
+		controller.print();
+		if (DMA.getCache() != null)
+			DMA.getCache().print();
+		if (journal > 0)
+			((MarsDiskStorage)storage).getJournal().print();
+		/* then close the files.. */
+		if (storage instanceof MarsDiskStorage)
+			try { ((MarsDiskStorage)storage).close();
+			} catch (java.io.IOException e) {
+				System.out.println("Can't close storage: "+e.getMessage());
+			}
+		/* ..and release the memory */
+		if (memory instanceof MarsDirectMemory)
+			((MarsDirectMemory)memory).close();
+	}
+
+	private static void usage()
+	{
+		System.out.println("Usage: java Run [-memory=object|packed|direct|striped]");
+		System.out.println("                [-coresize=cells] [-checkpoint=file] [-restore=file]");
+		System.out.println("                [-storage=dir [-mapped] [-journal=records]] [-cache=blocks]");
+		System.out.println("                [-burst] [-headless|-pooled]");
+		System.out.println("                [-dmachannels=n] [-dmaaffinity=process|file] [-dmaburst=cells]");
+		System.out.println("                [-dmapolicy=fifo|priority|deadline|elevator] [-readahead=cells]");
+	}
+
+	/**
+	 * Builds the core memory of the given type.
+	 *
+	 * @param type "object" for a memory of MarsCell objects, "packed" for
+	 * a memory packed in an array of ints, "direct" for an off-heap memory,
+	 * "striped" for a packed memory with a lock for each block of cells
+	 * @param constants the constants of the battle, giving the core size
+	 *
+	 * @return the new memory
+	 * @throws IllegalArgumentException if the type is unknown
+	 */
+	public static PrimitiveMemory createMemory ( String type, MarsSystemConstant constants )
+	{
+		if (type.equals("object"))
+			return new MarsMemory(constants);
+		else if (type.equals("packed"))
+			return new MarsPackedMemory(constants);
+		else if (type.equals("direct"))
+			return new MarsDirectMemory(constants);
+		else if (type.equals("striped"))
+			return new MarsStripedMemory(constants);
+		else
+			throw new IllegalArgumentException("Unknown memory type: "+type);
 	}
 
 	private static void putWarriorsInStorage ( MarsStorage storage )
@@ -123,13 +349,13 @@ class datamon extends warrior
 	 */
 	datamon ( MarsStorage storage, int owner )
 	{
-		storage.setMarsStorageFile(owner,new MarsFile(owner,this.getWarrior()));
+		storage.setMarsStorageFile(owner,new MarsFile(owner,warrior,owner));
 	}
 	
 	/**
 	 * Constructor for the memory
 	 */
-	datamon ( MarsMemory memory, int startingaddress )
+	datamon ( Memory memory, int startingaddress )
 	{
 		for (int i=0; i<8; i++)
 		{
@@ -158,13 +384,13 @@ class devimon extends warrior
 	 */
 	devimon ( MarsStorage storage, int owner )
 	{
-		storage.setMarsStorageFile(owner,new MarsFile(owner,this.getWarrior()));
+		storage.setMarsStorageFile(owner,new MarsFile(owner,warrior,owner));
 	}
 
 	/**
 	 * Constructor for the memory
 	 */
-	devimon ( MarsMemory mem, int startingaddress )
+	devimon ( Memory mem, int startingaddress )
 	{
 		for (int i=0; i<7; i++) {
 			System.out.println("adding values "+warrior[i].getOpcode()+"."+
@@ -196,13 +422,13 @@ class angemon extends warrior
 	 */
 	angemon ( MarsStorage storage, int owner )
 	{
-		storage.setMarsStorageFile(owner,new MarsFile(owner,this.getWarrior()));
+		storage.setMarsStorageFile(owner,new MarsFile(owner,warrior,owner));
 	}
 
 	/**
 	 * Constructor for the memory
 	 */
-	angemon ( MarsMemory mem, int staddr )
+	angemon ( Memory mem, int staddr )
 	{
 		for (int i=0; i<11; i++)
 		{